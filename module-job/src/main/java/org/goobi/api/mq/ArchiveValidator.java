@@ -0,0 +1,197 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks a zip archive before it is extracted. Only the central directory is read, no entry is inflated.
+ *
+ * The rules are the same as after the extraction: the archive may contain a single top level folder, folders starting with __MAC are ignored,
+ * xml files are ALTO files, at least one object file is needed and the destination folders must be empty.
+ *
+ */
+
+public final class ArchiveValidator {
+
+    private static final String MAC_FOLDER_PREFIX = "__MAC";
+
+    private ArchiveValidator() {
+    }
+
+    /**
+     * Validate the archive against the destination folders.
+     *
+     * @param zipFile the zip file
+     * @param destinations folders the objects are imported into
+     * @return the verdict
+     * @throws IOException if the file is not a valid zip file
+     */
+
+    public static Verdict validate(Path zipFile, Path... destinations) throws IOException {
+        Verdict verdict = new Verdict();
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                verdict.uncompressedSize += entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+                checkEntry(verdict, entry);
+            }
+        }
+        int index = verdict.topLevelFolder == null ? 0 : 1;
+        verdict.objectFiles = verdict.objectCounts[index];
+        verdict.altoFiles = verdict.altoCounts[index];
+        if (verdict.rejection != null) {
+            return verdict;
+        }
+        if (verdict.objectFiles == 0) {
+            verdict.rejection = Rejection.NO_OBJECT_FILES;
+            return verdict;
+        }
+        for (Path destination : destinations) {
+            if (!FolderProbe.getInstance().isEmpty(destination)) {
+                verdict.rejection = Rejection.DESTINATION_NOT_EMPTY;
+                verdict.detail = destination.toString();
+                return verdict;
+            }
+        }
+        return verdict;
+    }
+
+    private static void checkEntry(Verdict verdict, ZipEntry entry) {
+        String[] parts = entry.getName().split("/");
+        if (parts[0].startsWith(MAC_FOLDER_PREFIX)) {
+            return;
+        }
+        // an entry inside a folder or a folder itself
+        boolean inFolder = parts.length > 1 || entry.isDirectory();
+        int depth = 0;
+        if (inFolder) {
+            if (verdict.topLevelFolder == null) {
+                verdict.topLevelFolder = parts[0];
+            } else if (!verdict.topLevelFolder.equals(parts[0])) {
+                reject(verdict, Rejection.MULTIPLE_FOLDERS, parts[0]);
+                return;
+            }
+            depth = 1;
+        }
+        int fileDepth = entry.isDirectory() ? parts.length : parts.length - 1;
+        if (fileDepth > depth) {
+            if (!parts[depth].startsWith(MAC_FOLDER_PREFIX)) {
+                reject(verdict, Rejection.UNEXPECTED_SUB_FOLDER, parts[depth]);
+            }
+            return;
+        }
+        if (entry.isDirectory()) {
+            return;
+        }
+        String fileNameLower = parts[parts.length - 1].toLowerCase();
+        if (fileNameLower.startsWith(".")) {
+            return;
+        }
+        // files next to the top level folder are not imported, only the content of the folder
+        int index = inFolder ? 1 : 0;
+        if (fileNameLower.endsWith(".xml")) {
+            verdict.altoCounts[index]++;
+        } else {
+            verdict.objectCounts[index]++;
+        }
+    }
+
+    private static void reject(Verdict verdict, Rejection rejection, String detail) {
+        if (verdict.rejection == null) {
+            verdict.rejection = rejection;
+            verdict.detail = detail;
+        }
+    }
+
+    /**
+     * Reasons to reject an archive
+     */
+
+    public enum Rejection {
+        MULTIPLE_FOLDERS("found more than one folder in zip file"),
+        UNEXPECTED_SUB_FOLDER("found unexpected sub folder in zip file"),
+        NO_OBJECT_FILES("found no files to import"),
+        DESTINATION_NOT_EMPTY("directory is not empty");
+
+        private final String message;
+
+        Rejection(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Result of the validation
+     */
+
+    public static class Verdict {
+
+        private Rejection rejection;
+
+        private String detail;
+
+        private String topLevelFolder;
+
+        // files outside and inside of the top level folder
+        private final int[] objectCounts = new int[2];
+
+        private final int[] altoCounts = new int[2];
+
+        private int objectFiles;
+
+        private int altoFiles;
+
+        private long uncompressedSize;
+
+        public boolean isAccepted() {
+            return rejection == null;
+        }
+
+        public Rejection getRejection() {
+            return rejection;
+        }
+
+        public int getObjectFiles() {
+            return objectFiles;
+        }
+
+        public int getAltoFiles() {
+            return altoFiles;
+        }
+
+        public long getUncompressedSize() {
+            return uncompressedSize;
+        }
+
+        /**
+         * Get a message for the process journal
+         */
+
+        public String getJournalMessage() {
+            StringBuilder sb = new StringBuilder();
+            if (isAccepted()) {
+                sb.append("Archive validation passed");
+            } else {
+                sb.append("File import aborted, ").append(rejection.getMessage());
+                if (detail != null) {
+                    sb.append(" (").append(detail).append(')');
+                }
+            }
+            sb.append(". Objects: ").append(objectFiles);
+            sb.append(", ALTO files: ").append(altoFiles);
+            sb.append(", uncompressed size: ").append(uncompressedSize).append(" bytes");
+            if (topLevelFolder != null) {
+                sb.append(", folder: ").append(topLevelFolder);
+            }
+            return sb.toString();
+        }
+    }
+}
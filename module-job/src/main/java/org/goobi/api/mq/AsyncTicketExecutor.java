@@ -0,0 +1,163 @@
+package org.goobi.api.mq;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.PluginReturnValue;
+
+import de.sub.goobi.helper.Helper;
+import jakarta.jms.JMSException;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Executes tickets on virtual threads, so the message queue consumer is released immediately.
+ *
+ * This is used for tickets with the property asyncExecution set to true. The handlers spend most of their time waiting for s3 requests, with
+ * virtual threads many of them can wait at the same time without blocking a platform thread each. The number of tickets running at the same time is
+ * still limited. If the limit is reached, the consumer thread waits until a ticket has finished, so the remaining messages stay in the broker.
+ *
+ * The ticket is acknowledged before it runs, so the broker cannot redeliver it. Failed tickets are therefore written to the process journal. Tickets
+ * that can be executed again without side effects are submitted again to the slow queue, a few times at most. A deferred ticket is not a failure,
+ * {@link TicketDeferral} submits it again after a delay. A ticket that is still running when the application stops is lost, only use this for
+ * tickets that can be created again.
+ *
+ */
+
+@Log4j2
+public class AsyncTicketExecutor {
+
+    private static final int MAX_RUNNING_TICKETS = 256;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private static AsyncTicketExecutor instance;
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Semaphore runningTickets = new Semaphore(MAX_RUNNING_TICKETS);
+
+    private AsyncTicketExecutor() {
+    }
+
+    public static synchronized AsyncTicketExecutor getInstance() {
+        if (instance == null) {
+            instance = new AsyncTicketExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop accepting tickets and give the running tickets some time to finish, if the executor was used. This is called when the web application
+     * is stopped.
+     */
+
+    static void shutdown() {
+        AsyncTicketExecutor asyncExecutor;
+        synchronized (AsyncTicketExecutor.class) {
+            asyncExecutor = instance;
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.awaitRunningTickets();
+        }
+    }
+
+    /**
+     * Check if the ticket should be executed in the background
+     */
+
+    public static boolean isAsync(TaskTicket ticket) {
+        return "true".equalsIgnoreCase(ticket.getProperties().get("asyncExecution"));
+    }
+
+    /**
+     * Run the ticket in the background. If the maximum number of tickets is already running, this waits until one of them has finished. If the
+     * ticket fails, the error is written to the log and to the process journal.
+     *
+     * @param ticket the ticket to execute
+     * @param handlerName name of the ticket handler, used for logging
+     * @param retryable true if the ticket can be submitted again after a failure, because a failed attempt leaves nothing behind
+     * @param work the actual ticket implementation
+     * @return {@link PluginReturnValue#FINISH} if the ticket was started, {@link PluginReturnValue#ERROR} if it could not be started and should be
+     *         delivered again
+     */
+
+    public PluginReturnValue submit(TaskTicket ticket, String handlerName, boolean retryable, Supplier<PluginReturnValue> work) {
+        try {
+            // block the consumer, so the broker keeps the messages that cannot be started yet
+            runningTickets.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return PluginReturnValue.ERROR;
+        }
+        try {
+            executor.execute(() -> {
+                long start = System.currentTimeMillis();
+                try {
+                    PluginReturnValue result = work.get();
+                    log.debug("{} ticket finished with {} after {} ms", handlerName, result, System.currentTimeMillis() - start);
+                    if (result == PluginReturnValue.WAIT) {
+                        // not a failure, the ticket is submitted again after a delay
+                        TicketDeferral.resolve(ticket, handlerName, result);
+                    } else if (result == PluginReturnValue.ERROR) {
+                        failed(ticket, handlerName, retryable, "returned an error");
+                    }
+                } catch (RuntimeException e) {
+                    log.error("{} ticket for process {} failed", handlerName, ticket.getProcessId(), e);
+                    failed(ticket, handlerName, retryable, e.getMessage());
+                } finally {
+                    runningTickets.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the application is stopping, leave the message to the broker
+            runningTickets.release();
+            log.info("{} ticket for process {} was not started, the application is stopping", handlerName, ticket.getProcessId());
+            return PluginReturnValue.ERROR;
+        }
+        return PluginReturnValue.FINISH;
+    }
+
+    private void failed(TaskTicket ticket, String handlerName, boolean retryable, String reason) {
+        int attempt = NumberUtils.toInt(ticket.getProperties().get("asyncAttempt"), 1);
+        String message = handlerName + " ticket failed: " + reason;
+        if (!retryable) {
+            message += ", it is not submitted again";
+        } else if (attempt < MAX_ATTEMPTS) {
+            ticket.getProperties().put("asyncAttempt", String.valueOf(attempt + 1));
+            try {
+                TicketGenerator.submitInternalTicket(ticket, QueueType.SLOW_QUEUE, handlerName,
+                        ticket.getProcessId() == null ? 0 : ticket.getProcessId());
+                message += ", submitted again";
+            } catch (JMSException e) {
+                log.error("Unable to submit {} ticket again", handlerName, e);
+            }
+        } else {
+            message += ", giving up after " + attempt + " attempts";
+        }
+        log.error("{} for process {}", message, ticket.getProcessId());
+        TicketMetrics.getInstance().increment("async_ticket_failures_total", 1, "handler", handlerName);
+        if (ticket.getProcessId() != null) {
+            Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.ERROR, message, "ticket");
+        }
+    }
+
+    private void awaitRunningTickets() {
+        executor.shutdown();
+        try {
+            if (!runningTickets.tryAcquire(MAX_RUNNING_TICKETS, SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("{} asynchronous tickets were still running at shutdown and are lost",
+                        MAX_RUNNING_TICKETS - runningTickets.availablePermits());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.PluginReturnValue;
+
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.S3FileUtils;
+import de.sub.goobi.helper.StorageProvider;
+import jakarta.jms.JMSException;
+import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * This class is used to download all objects below a prefix of an s3 bucket into a local directory.
+ *
+ * The objects are downloaded in parallel, the number of concurrent downloads can be limited with the property maxInFlight. The sub folders below
+ * the prefix are created in the target directory. For each downloaded object the same follow-up ticket is created as in a single downloads3
+ * ticket.
+ *
+ * Each object is downloaded like in a single downloads3 ticket, the disk space is reserved first and an existing file is replaced. Objects that
+ * could not be downloaded are written to the process journal and get their own downloads3 ticket, the bulk ticket itself finishes.
+ *
+ */
+
+@Log4j2
+public class BulkDownloadS3Handler extends DownloadS3Handler {
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+    @Override
+    public String getTicketHandlerName() {
+        return "bulkdownloads3";
+    }
+
+    @Override
+    protected PluginReturnValue execute(TaskTicket ticket) {
+        String bucket = ticket.getProperties().get("bucket");
+
+        String prefix = ticket.getProperties().get("prefix");
+
+        Path targetDir = Paths.get(ticket.getProperties().get("targetDir"));
+
+        int maxInFlight = NumberUtils.toInt(ticket.getProperties().get("maxInFlight"), DEFAULT_MAX_IN_FLIGHT);
+
+        boolean streamingImport = ticket.getProcessId() == null && "true".equalsIgnoreCase(ticket.getProperties().get("streamingImport"));
+
+        log.debug("download all objects from {}/{} to {}", bucket, prefix, targetDir);
+        try {
+            StorageProvider.getInstance().createDirectories(targetDir);
+        } catch (IOException e1) {
+            log.error("Unable to create temporary directory", e1);
+            return PluginReturnValue.ERROR;
+        }
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+
+        Semaphore inFlight = new Semaphore(Math.max(maxInFlight, 1));
+        AtomicInteger rejectedDownloads = new AtomicInteger();
+        Map<String, Path> failedKeys = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> downloads = new ArrayList<>();
+        String continuationToken = null;
+        try {
+            do {
+                ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
+                        .bucket(bucket)
+                        .prefix(prefix);
+                if (continuationToken != null) {
+                    requestBuilder.continuationToken(continuationToken);
+                }
+                ListObjectsV2Response response = utils.getS3().listObjectsV2(requestBuilder.build()).join();
+
+                for (S3Object object : response.contents()) {
+                    String s3Key = object.key();
+                    if (s3Key.endsWith("/")) {
+                        // folder marker
+                        continue;
+                    }
+                    Path targetPath;
+                    try {
+                        targetPath = getTargetPath(targetDir, prefix, s3Key);
+                    } catch (IOException e) {
+                        log.error(e);
+                        rejectedDownloads.incrementAndGet();
+                        continue;
+                    }
+                    if (streamingImport) {
+                        // nothing to download, the import ticket reads the object directly
+                        submitImportEPTicket(ticket, s3Key, targetPath);
+                        continue;
+                    }
+
+                    inFlight.acquire();
+                    // reserve the space and replace existing files like a single download
+                    DiskSpaceReservations.Reservation reservation = null;
+                    CompletableFuture<Void> download;
+                    try {
+                        StorageProvider.getInstance().createDirectories(targetPath.getParent());
+                        reservation = DiskSpaceReservations.getInstance().reserve(object.size(), targetPath.getParent());
+                        if (reservation == null) {
+                            throw new IOException("Not enough disk space for " + s3Key);
+                        }
+                        download = downloadObject(utils, bucket, s3Key, object.eTag(), targetPath);
+                    } catch (IOException e) {
+                        log.error("Unable to download " + s3Key, e);
+                        if (reservation != null) {
+                            reservation.close();
+                        }
+                        inFlight.release();
+                        failedKeys.put(s3Key, targetPath);
+                        continue;
+                    }
+                    DiskSpaceReservations.Reservation granted = reservation;
+                    download = download.thenRun(() -> finishDownload(ticket, utils, bucket, s3Key, targetPath))
+                            .whenComplete((result, throwable) -> {
+                                granted.close();
+                                inFlight.release();
+                                if (throwable != null) {
+                                    log.error("Unable to download " + s3Key, throwable);
+                                    failedKeys.put(s3Key, targetPath);
+                                }
+                            });
+                    downloads.add(download);
+                }
+                continuationToken = Boolean.TRUE.equals(response.isTruncated()) ? response.nextContinuationToken() : null;
+            } while (StringUtils.isNotBlank(continuationToken));
+
+            // wait until all downloads are finished, failures are already collected
+            CompletableFuture.allOf(downloads.toArray(new CompletableFuture[0])).exceptionally(t -> null).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error(e);
+            return PluginReturnValue.ERROR;
+        }
+
+        log.info("downloaded {} objects from {}/{}, {} failed, {} rejected", downloads.size(), bucket, prefix, failedKeys.size(),
+                rejectedDownloads.get());
+        if (!failedKeys.isEmpty()) {
+            // the other objects are finished and may be deleted already, only the failed ones are downloaded again
+            retryFailedDownloads(ticket, failedKeys);
+        }
+        return PluginReturnValue.FINISH;
+    }
+
+    /**
+     * Create a single downloads3 ticket for each failed object and write the keys into the process journal.
+     */
+
+    private void retryFailedDownloads(TaskTicket ticket, Map<String, Path> failedKeys) {
+        List<String> notSubmitted = new ArrayList<>();
+        for (Map.Entry<String, Path> entry : failedKeys.entrySet()) {
+            TaskTicket downloadTicket = TicketGenerator.generateSimpleTicket("downloads3");
+            downloadTicket.setProcessId(ticket.getProcessId());
+            downloadTicket.setProcessName(ticket.getProcessName());
+            downloadTicket.setStepId(ticket.getStepId());
+            downloadTicket.setStepName(ticket.getStepName());
+            downloadTicket.setProperties(new HashMap<>(ticket.getProperties()));
+            downloadTicket.getProperties().remove("prefix");
+            downloadTicket.getProperties().put("s3Key", entry.getKey());
+            downloadTicket.getProperties().put("targetDir", entry.getValue().getParent().toString());
+            try {
+                TicketGenerator.submitInternalTicket(downloadTicket, QueueType.SLOW_QUEUE, "downloads3",
+                        ticket.getProcessId() == null ? 0 : ticket.getProcessId());
+            } catch (JMSException e) {
+                log.error("Unable to submit download ticket for " + entry.getKey(), e);
+                notSubmitted.add(entry.getKey());
+            }
+        }
+        String message = "Download of " + failedKeys.size() + " objects failed, they are downloaded again with single tickets: "
+                + String.join(", ", failedKeys.keySet());
+        if (!notSubmitted.isEmpty()) {
+            message += ". No ticket could be created for: " + String.join(", ", notSubmitted);
+        }
+        log.error(message);
+        if (ticket.getProcessId() != null) {
+            Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.ERROR, message, "ticket");
+        }
+    }
+
+    /**
+     * Get the local path for an object. The part of the key after the prefix is kept, so objects with the same name in different sub folders
+     * don't overwrite each other.
+     *
+     * @throws IOException if the key would point outside of the target directory
+     */
+
+    static Path getTargetPath(Path targetDir, String prefix, String s3Key) throws IOException {
+        String relativeKey = StringUtils.isNotBlank(prefix) && s3Key.startsWith(prefix) ? s3Key.substring(prefix.length()) : s3Key;
+        relativeKey = StringUtils.stripStart(relativeKey, "/");
+        Path dir = targetDir.normalize();
+        Path targetPath = dir.resolve(relativeKey).normalize();
+        if (!targetPath.startsWith(dir) || targetPath.equals(dir)) {
+            throw new IOException("The object " + s3Key + " cannot be stored in " + targetDir);
+        }
+        return targetPath;
+    }
+}
@@ -0,0 +1,129 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Keeps track of the disk space that running tickets are going to use.
+ *
+ * A ticket reserves the expected size before it starts writing. The reservation is only granted, if the file system has enough usable space left
+ * after all other reservations on the same file system. The currently reserved space is exported as metric.
+ *
+ */
+
+@Log4j2
+public class DiskSpaceReservations {
+
+    // keep some space for everything else on the file system
+    private static final long SAFETY_MARGIN = 1024L * 1024 * 1024; // 1 GB
+
+    private static DiskSpaceReservations instance;
+
+    private final Map<FileStore, Long> reservedBytes = new HashMap<>();
+
+    private int activeReservations;
+
+    private DiskSpaceReservations() {
+        TicketMetrics.getInstance().registerGauge("disk_space_reserved_bytes", this::getReservedBytes);
+        TicketMetrics.getInstance().registerGauge("disk_space_reservations", this::getActiveReservations);
+    }
+
+    public static synchronized DiskSpaceReservations getInstance() {
+        if (instance == null) {
+            instance = new DiskSpaceReservations();
+        }
+        return instance;
+    }
+
+    /**
+     * Reserve the given amount of space in each of the folders. Folders on the same file system are added up.
+     *
+     * @param bytes space needed in each folder
+     * @param folders folders to write into, they don't need to exist yet
+     * @return the reservation or null, if there is not enough space
+     * @throws IOException if the file system of a folder cannot be determined
+     */
+
+    public synchronized Reservation reserve(long bytes, Path... folders) throws IOException {
+        Map<FileStore, Long> needed = new HashMap<>();
+        for (Path folder : folders) {
+            needed.merge(Files.getFileStore(getExistingFolder(folder)), bytes, Long::sum);
+        }
+        for (Map.Entry<FileStore, Long> entry : needed.entrySet()) {
+            FileStore store = entry.getKey();
+            long available = store.getUsableSpace() - reservedBytes.getOrDefault(store, 0L) - SAFETY_MARGIN;
+            if (available < entry.getValue()) {
+                log.info("Not enough space on {}, need {} bytes, {} bytes are available", store, entry.getValue(), available);
+                return null;
+            }
+        }
+        for (Map.Entry<FileStore, Long> entry : needed.entrySet()) {
+            reservedBytes.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+        activeReservations++;
+        return new Reservation(needed);
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public synchronized int getActiveReservations() {
+        return activeReservations;
+    }
+
+    private synchronized void release(Map<FileStore, Long> reserved) {
+        for (Map.Entry<FileStore, Long> entry : reserved.entrySet()) {
+            reservedBytes.computeIfPresent(entry.getKey(), (store, value) -> value - entry.getValue() > 0 ? value - entry.getValue() : null);
+        }
+        activeReservations--;
+    }
+
+    /**
+     * Get the folder used by {@link Files#createTempDirectory(String, java.nio.file.attribute.FileAttribute...)}
+     */
+
+    public static Path getTempFolder() {
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    private static Path getExistingFolder(Path folder) {
+        Path existing = folder.toAbsolutePath();
+        while (existing.getParent() != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return existing;
+    }
+
+    /**
+     * A granted reservation, it must be closed after the data is written
+     */
+
+    public class Reservation implements AutoCloseable {
+
+        private final Map<FileStore, Long> reserved;
+
+        private boolean released;
+
+        private Reservation(Map<FileStore, Long> reserved) {
+            this.reserved = reserved;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DiskSpaceReservations.this) {
+                if (!released) {
+                    released = true;
+                    release(reserved);
+                }
+            }
+        }
+    }
+}
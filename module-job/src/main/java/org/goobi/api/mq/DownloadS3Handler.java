@@ -1,24 +1,25 @@
 package org.goobi.api.mq;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.goobi.production.enums.PluginReturnValue;
 
 import de.sub.goobi.helper.S3FileUtils;
 import de.sub.goobi.helper.StorageProvider;
 import jakarta.jms.JMSException;
 import lombok.extern.log4j.Log4j2;
-import software.amazon.awssdk.services.s3.S3AsyncClient;
-import software.amazon.awssdk.services.s3.model.Delete;
-import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.transfer.s3.model.DownloadFileRequest;
 import software.amazon.awssdk.transfer.s3.model.FileDownload;
-import software.amazon.awssdk.transfer.s3.progress.LoggingTransferListener;
 
 @Log4j2
 public class DownloadS3Handler implements TicketHandler<PluginReturnValue> {
@@ -33,10 +34,30 @@ public class DownloadS3Handler implements TicketHandler<PluginReturnValue> {
      * 
      * In case it is a zip file, a new ticket is created to extract the file after download.
      * 
+     * If the property rangedDownload is set to true, the object is downloaded in parallel parts. The part size in MB and the number of parallel
+     * requests can be configured with partSize and downloadConcurrency. An interrupted download continues with the missing parts.
+     * 
+     * If the property streamingImport is set to true for an EP import, the download is skipped. The import ticket reads the archive directly from
+     * the bucket instead.
+     * 
+     * The download starts only if there is enough disk space in the target directory, otherwise the ticket is submitted again later.
+     * 
+     * If the property useDownloadCache is set to true, unchanged objects are taken from a local cache instead of downloading them again.
+     * 
+     * If the property asyncExecution is set to true, the ticket is processed in the background and the queue consumer is released immediately.
+     * 
      */
 
     @Override
     public PluginReturnValue call(TaskTicket ticket) {
+        if (AsyncTicketExecutor.isAsync(ticket)) {
+            // release the consumer thread, the ticket is processed in the background. A failed download can be started again
+            return AsyncTicketExecutor.getInstance().submit(ticket, getTicketHandlerName(), true, () -> execute(ticket));
+        }
+        return TicketDeferral.resolve(ticket, getTicketHandlerName(), execute(ticket));
+    }
+
+    protected PluginReturnValue execute(TaskTicket ticket) {
         String bucket = ticket.getProperties().get("bucket");
 
         String s3Key = ticket.getProperties().get("s3Key");
@@ -51,44 +72,127 @@ public class DownloadS3Handler implements TicketHandler<PluginReturnValue> {
             return PluginReturnValue.ERROR;
         }
 
+        Path targetPath = getTargetPath(targetDir, s3Key);
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+
+        if (ticket.getProcessId() == null && "true".equalsIgnoreCase(ticket.getProperties().get("streamingImport"))) {
+            // the object is extracted directly from s3, it gets deleted by the import ticket
+            log.info("create EP import ticket for streaming import");
+            submitImportEPTicket(ticket, s3Key, targetPath);
+            log.info("finished download ticket");
+            return PluginReturnValue.FINISH;
+        }
+
+        HeadObjectResponse head;
+        try {
+            head = utils.getS3().headObject(r -> r.bucket(bucket).key(s3Key)).join();
+        } catch (CompletionException e) {
+            log.error("Unable to read the metadata of " + s3Key, e.getCause() != null ? e.getCause() : e);
+            return PluginReturnValue.ERROR;
+        }
+        long objectSize = head.contentLength();
+        boolean useCache = "true".equalsIgnoreCase(ticket.getProperties().get("useDownloadCache"));
+        if (useCache && S3DownloadCache.getInstance().copyFromCache(bucket, s3Key, head.eTag(), targetPath)) {
+            log.info("use cached file for {}", s3Key);
+        } else {
+            // make sure the object fits on the disk before writing it
+            DiskSpaceReservations.Reservation reservation;
+            try {
+                reservation = DiskSpaceReservations.getInstance().reserve(objectSize, targetDir);
+            } catch (IOException e) {
+                log.error("Unable to check the available disk space", e);
+                return PluginReturnValue.ERROR;
+            }
+            if (reservation == null) {
+                // not enough space right now, try again later
+                return TicketDeferral.defer(ticket, getTicketHandlerName());
+            }
+            try {
+                if ("true".equalsIgnoreCase(ticket.getProperties().get("rangedDownload"))) {
+                    // download the object in parallel parts, continue an interrupted download if possible
+                    long partSize = NumberUtils.toLong(ticket.getProperties().get("partSize"), 0) * 1024 * 1024;
+                    int concurrency = NumberUtils.toInt(ticket.getProperties().get("downloadConcurrency"), 0);
+                    try {
+                        new S3RangeDownloader(utils.getS3(), partSize, concurrency).download(bucket, s3Key, targetPath, head);
+                    } catch (IOException e) {
+                        log.error("Unable to download " + s3Key, e);
+                        return PluginReturnValue.ERROR;
+                    }
+                } else {
+                    try {
+                        // Wait for the transfer to complete
+                        downloadObject(utils, bucket, s3Key, head.eTag(), targetPath).join();
+                    } catch (IOException e) {
+                        log.error("Unable to remove old file " + targetPath, e);
+                        return PluginReturnValue.ERROR;
+                    }
+                }
+            } finally {
+                reservation.close();
+            }
+            if (useCache) {
+                S3DownloadCache.getInstance().addToCache(bucket, s3Key, head.eTag(), targetPath);
+            }
+        }
+
+        log.info("saved file");
+        finishDownload(ticket, utils, bucket, s3Key, targetPath);
+        log.info("finished download ticket");
+        return PluginReturnValue.FINISH;
+    }
+
+    /**
+     * Get the local path for an object. The file name is the last part of the key.
+     */
+
+    protected static Path getTargetPath(Path targetDir, String s3Key) {
         int index = s3Key.lastIndexOf('/');
-        Path targetPath;
         if (index != -1) {
-            targetPath = targetDir.resolve(s3Key.substring(index + 1));
+            return targetDir.resolve(s3Key.substring(index + 1));
         } else {
-            targetPath = targetDir.resolve(s3Key);
+            return targetDir.resolve(s3Key);
         }
-        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+    }
+
+    /**
+     * Download the object with the transfer manager. The download fails, if the object no longer has the given ETag.
+     *
+     * @throws IOException if an existing file at the target path cannot be removed
+     */
 
+    protected static CompletableFuture<Void> downloadObject(S3FileUtils utils, String bucket, String s3Key, String eTag, Path targetPath)
+            throws IOException {
         DownloadFileRequest downloadFileRequest =
                 DownloadFileRequest.builder()
-                        .getObjectRequest(req -> req.bucket(bucket).key(s3Key))
+                        .getObjectRequest(req -> req.bucket(bucket)
+                                .key(s3Key)
+                                .ifMatch(eTag)
+                                .checksumMode(ChecksumMode.ENABLED))
                         .destination(targetPath)
-                        .addTransferListener(LoggingTransferListener.create())
+                        .addTransferListener(MetricsTransferListener.create(bucket))
                         .build();
 
+        // the target may be a hard link into the download cache, it must be replaced and not overwritten
+        Files.deleteIfExists(targetPath);
         FileDownload download = utils.getTransferManager().downloadFile(downloadFileRequest);
+        return download.completionFuture().thenApply(completed -> null);
+    }
 
-        // Wait for the transfer to complete
-        download.completionFuture().join();
+    /**
+     * Delete the downloaded object from the bucket, if configured, and create the follow-up ticket. EP imports get an importEP ticket, zip files
+     * for existing processes an unzip ticket.
+     */
 
-        log.info("saved file");
+    protected void finishDownload(TaskTicket ticket, S3FileUtils utils, String bucket, String s3Key, Path targetPath) {
         String deleteFiles = ticket.getProperties().get("deleteFiles");
         if (StringUtils.isNotBlank(deleteFiles) && "true".equalsIgnoreCase(deleteFiles)) {
-            deleteObject(utils.getS3(), bucket, s3Key);
+            S3DeleteBatcher.getInstance().delete(bucket, s3Key);
             log.info("deleted file from bucket");
         }
         // check if it is an EP import or a regular one
         if (ticket.getProcessId() == null) {
             log.info("create EP import ticket");
-            TaskTicket importEPTicket = TicketGenerator.generateSimpleTicket("importEP");
-            importEPTicket.setProperties(ticket.getProperties());
-            importEPTicket.getProperties().put("filename", targetPath.toString());
-            try {
-                TicketGenerator.submitInternalTicket(importEPTicket, QueueType.SLOW_QUEUE, "EP_import", 0);
-            } catch (JMSException e) {
-                log.error(e);
-            }
+            submitImportEPTicket(ticket, s3Key, targetPath);
         }
 
         // create a new ticket to extract data
@@ -97,9 +201,10 @@ public class DownloadS3Handler implements TicketHandler<PluginReturnValue> {
             TaskTicket unzipTticket = TicketGenerator.generateSimpleTicket("unzip");
             unzipTticket.setProcessId(ticket.getProcessId());
             unzipTticket.setProcessName(ticket.getProcessName());
-            unzipTticket.setProperties(ticket.getProperties());
+            unzipTticket.setProperties(new HashMap<>(ticket.getProperties()));
             unzipTticket.setStepId(ticket.getStepId());
             unzipTticket.setStepName(ticket.getStepName());
+            unzipTticket.getProperties().put("s3Key", s3Key);
             unzipTticket.getProperties().put("filename", targetPath.toString());
             unzipTticket.getProperties().put("closeStep", "true");
             try {
@@ -109,23 +214,17 @@ public class DownloadS3Handler implements TicketHandler<PluginReturnValue> {
             }
 
         }
-        log.info("finished download ticket");
-        return PluginReturnValue.FINISH;
     }
 
-    private void deleteObject(S3AsyncClient s3, String bucket, String key) {
-        ArrayList<ObjectIdentifier> toDelete = new ArrayList<>();
-        toDelete.add(ObjectIdentifier.builder()
-                .key(key)
-                .build());
-
-        DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
-                .bucket(bucket)
-                .delete(Delete.builder()
-                        .objects(toDelete)
-                        .build())
-                .build();
-
-        s3.deleteObjects(dor);
+    protected void submitImportEPTicket(TaskTicket ticket, String s3Key, Path targetPath) {
+        TaskTicket importEPTicket = TicketGenerator.generateSimpleTicket("importEP");
+        importEPTicket.setProperties(new HashMap<>(ticket.getProperties()));
+        importEPTicket.getProperties().put("s3Key", s3Key);
+        importEPTicket.getProperties().put("filename", targetPath.toString());
+        try {
+            TicketGenerator.submitInternalTicket(importEPTicket, QueueType.SLOW_QUEUE, "EP_import", 0);
+        } catch (JMSException e) {
+            log.error(e);
+        }
     }
 }
@@ -0,0 +1,306 @@
+package org.goobi.api.mq;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.S3FileUtils;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Local index of the EP references that already have a METS file in the editorial photography bucket.
+ *
+ * The index is built once from a complete listing of the bucket and stored in the temporary folder, so a restart can use it again. A bloom
+ * filter answers most negative lookups without touching the set of references. A reference found in the index is always confirmed in the bucket,
+ * because its process may have been deleted or may not have been exported yet. The index is built again in the background once a day. As long as
+ * no index is available, the bucket is asked directly.
+ *
+ * Limitation: only negative answers come from the index alone. References of processes created by this plugin are added when the process is
+ * created, so their later export is noticed. A METS file written into the bucket by any other means after the last listing is not seen before
+ * the next daily rebuild, the reference is treated as new until then.
+ *
+ */
+
+@Log4j2
+public class EPReferenceIndex {
+
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis(24);
+
+    private static final String INDEX_FILE = "ep_reference_index.txt";
+
+    // <suffix>/<reference>/<reference>.xml
+    private static final Pattern KEY_PATTERN = Pattern.compile("[^/]{2}/([^/]+)/\\1\\.xml");
+
+    private static EPReferenceIndex instance;
+
+    private final Path indexFile;
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    // bucket of the current index, null if there is no index yet
+    private String indexedBucket;
+
+    private long builtAt;
+
+    private Set<String> keys = ConcurrentHashMap.newKeySet();
+
+    private BloomFilter bloomFilter = new BloomFilter(0);
+
+    // keys of new processes that were not found in a listing yet
+    private final Set<String> addedKeys = ConcurrentHashMap.newKeySet();
+
+    private EPReferenceIndex() {
+        indexFile = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), INDEX_FILE);
+        loadIndex();
+        TicketMetrics.getInstance().registerGauge("ep_reference_index_size", this::getSize);
+    }
+
+    public static synchronized EPReferenceIndex getInstance() {
+        if (instance == null) {
+            instance = new EPReferenceIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if the METS file of a reference exists in the bucket.
+     *
+     * @param reference the reference number, spaces and tabs are replaced
+     * @return true if the file exists
+     * @throws IOException if the bucket must be asked and cannot be read
+     */
+
+    public boolean exists(String reference) throws IOException {
+        String bucket = EditorialConfig.getInstance().getBucket();
+        String key = getKey(reference);
+        boolean indexed;
+        synchronized (this) {
+            indexed = bucket.equals(indexedBucket);
+            if (indexed) {
+                if (System.currentTimeMillis() - builtAt > MAX_AGE) {
+                    rebuildInBackground(bucket);
+                }
+                if (!bloomFilter.mightContain(key)) {
+                    TicketMetrics.getInstance().increment("ep_reference_index_lookups_total", 1, "result", "bloom_negative");
+                    return false;
+                }
+                if (!keys.contains(key)) {
+                    TicketMetrics.getInstance().increment("ep_reference_index_lookups_total", 1, "result", "negative");
+                    return false;
+                }
+            }
+        }
+        if (indexed) {
+            // the index only knows that the reference was seen, the file may not exist (yet)
+            boolean found = FolderProbe.getInstance().exists(bucket, key);
+            TicketMetrics.getInstance().increment("ep_reference_index_lookups_total", 1, "result", found ? "confirmed" : "unconfirmed");
+            return found;
+        }
+        // no index for this bucket yet
+        rebuildInBackground(bucket);
+        TicketMetrics.getInstance().increment("ep_reference_index_lookups_total", 1, "result", "s3");
+        return FolderProbe.getInstance().exists(bucket, key);
+    }
+
+    /**
+     * Add the reference of a new process to the index, its METS file will be exported into the bucket later. Lookups of the reference ask the
+     * bucket, so the new template is used until the export happened.
+     *
+     * @param reference the reference number, spaces and tabs are replaced
+     */
+
+    public void add(String reference) {
+        String key = getKey(reference);
+        synchronized (this) {
+            addedKeys.add(key);
+            if (indexedBucket == null || !keys.add(key)) {
+                return;
+            }
+            bloomFilter.put(key);
+            // same lock as storeIndex, the line must not get lost when the file is replaced
+            try {
+                Files.write(indexFile, (key + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.warn("Unable to store {} in reference index", key, e);
+            }
+        }
+    }
+
+    public synchronized int getSize() {
+        return keys.size();
+    }
+
+    /**
+     * Get the key of the METS file of a reference
+     */
+
+    public static String getKey(String reference) {
+        String ref = reference.replaceAll(" |\t", "_");
+        int refLen = ref.length();
+        return ref.substring(refLen - 2, refLen) + "/" + ref + "/" + ref + ".xml";
+    }
+
+    private void rebuildInBackground(String bucket) {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild(bucket);
+            } catch (RuntimeException e) {
+                log.error("Unable to build the reference index for bucket {}", bucket, e);
+            } finally {
+                rebuilding.set(false);
+            }
+        }, "ep-reference-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void rebuild(String bucket) {
+        log.info("build reference index for bucket {}", bucket);
+        long start = System.currentTimeMillis();
+        Set<String> newKeys = ConcurrentHashMap.newKeySet();
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder().bucket(bucket);
+        ListObjectsV2Response response;
+        do {
+            response = utils.getS3().listObjectsV2(requestBuilder.build()).join();
+            for (S3Object object : response.contents()) {
+                Matcher matcher = KEY_PATTERN.matcher(object.key());
+                if (matcher.matches()) {
+                    newKeys.add(object.key());
+                }
+            }
+            requestBuilder.continuationToken(response.nextContinuationToken());
+        } while (Boolean.TRUE.equals(response.isTruncated()));
+
+        synchronized (this) {
+            // references found in the listing no longer need to be remembered, the others are kept until a listing contains them
+            addedKeys.removeAll(newKeys);
+            newKeys.addAll(addedKeys);
+            setIndex(bucket, start, newKeys);
+        }
+        storeIndex();
+        log.info("reference index for bucket {} contains {} references", bucket, newKeys.size());
+    }
+
+    private void setIndex(String bucket, long timestamp, Set<String> newKeys) {
+        BloomFilter newFilter = new BloomFilter(newKeys.size());
+        for (String key : newKeys) {
+            newFilter.put(key);
+        }
+        indexedBucket = bucket;
+        builtAt = timestamp;
+        keys = newKeys;
+        bloomFilter = newFilter;
+    }
+
+    private void loadIndex() {
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            // first line: bucket and creation time
+            String[] header = reader.readLine().split(" ");
+            Set<String> storedKeys = ConcurrentHashMap.newKeySet();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    storedKeys.add(line);
+                }
+            }
+            synchronized (this) {
+                setIndex(header[0], Long.parseLong(header[1]), storedKeys);
+            }
+            log.debug("loaded {} references from {}", storedKeys.size(), indexFile);
+        } catch (NoSuchFileException e) {
+            log.debug("no reference index found");
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to read reference index {}, it will be built again", indexFile, e);
+        }
+    }
+
+    private void storeIndex() {
+        Path tempFile = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+        try {
+            synchronized (this) {
+                try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    writer.write(indexedBucket + " " + builtAt + "\n");
+                    for (String key : keys) {
+                        writer.write(key);
+                        writer.write('\n');
+                    }
+                }
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            log.error("Unable to store reference index {}", indexFile, e);
+        }
+    }
+
+    /**
+     * Simple bloom filter with about 1% false positives at the expected size
+     */
+
+    private static class BloomFilter {
+
+        private static final int HASH_FUNCTIONS = 7;
+
+        private final BitSet bits;
+
+        private final int size;
+
+        private BloomFilter(int expectedEntries) {
+            // leave room for the references added until the next rebuild
+            size = Math.max(1024, expectedEntries * 2 * 10);
+            bits = new BitSet(size);
+        }
+
+        private void put(String value) {
+            int h1 = value.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                bits.set(Math.floorMod(h1 + i * h2, size));
+            }
+        }
+
+        private boolean mightContain(String value) {
+            int h1 = value.hashCode();
+            int h2 = mix(h1);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                if (!bits.get(Math.floorMod(h1 + i * h2, size))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            // second hash for double hashing, the finalizer of murmur3
+            int h = hash;
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h | 1;
+        }
+    }
+}
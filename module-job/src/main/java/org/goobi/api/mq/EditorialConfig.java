@@ -0,0 +1,56 @@
+package org.goobi.api.mq;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Configuration of the editorial photography import. The file is parsed once and reloaded when it changes on disk.
+ */
+
+@Log4j2
+public class EditorialConfig {
+
+    private static final String CONFIG_FILE = "/opt/digiverso/goobi/config/plugin_wellcome_editorial_process_creation.xml";
+
+    private static final String DEFAULT_BUCKET = "wellcomecollection-editorial-photography";
+
+    private static EditorialConfig instance;
+
+    private final XMLConfiguration config;
+
+    private EditorialConfig() {
+        XMLConfiguration xmlConfig;
+        try {
+            xmlConfig = new XMLConfiguration(CONFIG_FILE);
+            xmlConfig.setReloadingStrategy(new FileChangedReloadingStrategy());
+        } catch (ConfigurationException e) {
+            log.debug("Unable to read {}, use default values", CONFIG_FILE);
+            xmlConfig = null;
+        }
+        config = xmlConfig;
+    }
+
+    public static synchronized EditorialConfig getInstance() {
+        if (instance == null) {
+            instance = new EditorialConfig();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the bucket containing the METS files of already imported shoots
+     */
+
+    public String getBucket() {
+        if (config == null) {
+            return DEFAULT_BUCKET;
+        }
+        // the reloading strategy is checked on each access, synchronize on the configuration
+        synchronized (config) {
+            return config.getString("bucket", DEFAULT_BUCKET);
+        }
+    }
+}
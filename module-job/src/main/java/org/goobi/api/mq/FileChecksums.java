@@ -0,0 +1,103 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.sub.goobi.config.ConfigurationHelper;
+
+/**
+ * Computes SHA-256 checksums while files are written, so the data does not need to be read again for a fixity check.
+ *
+ * The checksums are stored in the import folder of the process in the format of sha256sum, one line per file name.
+ *
+ */
+
+public final class FileChecksums {
+
+    public static final String MANIFEST_NAME = "checksums.sha256";
+
+    private FileChecksums() {
+    }
+
+    /**
+     * Write the stream into a new file and compute the checksum of the written data. The stream is not closed.
+     *
+     * @param in data to write
+     * @param target file to create
+     * @return SHA-256 checksum as hex string
+     * @throws IOException
+     */
+
+    public static String copy(InputStream in, Path target) throws IOException {
+        MessageDigest digest = newDigest();
+        try (OutputStream out = new DigestOutputStream(Files.newOutputStream(target, StandardOpenOption.CREATE_NEW), digest)) {
+            in.transferTo(out);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Get the import folder of a process, the checksum manifest is stored there
+     */
+
+    public static Path getImportFolder(int processId) {
+        return Paths.get(ConfigurationHelper.getInstance().getMetadataFolder(), String.valueOf(processId), "import");
+    }
+
+    /**
+     * Add the checksums to the manifest in the given folder. Existing entries of other files are kept, entries of the same file are replaced. The
+     * manifest is written to a temporary file first and then renamed.
+     *
+     * @param folder folder of the manifest
+     * @param checksums file name and checksum
+     * @throws IOException
+     */
+
+    public static synchronized void writeManifest(Path folder, Map<String, String> checksums) throws IOException {
+        if (checksums.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(folder);
+        Path manifest = folder.resolve(MANIFEST_NAME);
+        Map<String, String> entries = new TreeMap<>();
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                // sha256sum format: checksum, two spaces, file name
+                int index = line.indexOf("  ");
+                if (index > 0) {
+                    entries.put(line.substring(index + 2), line.substring(0, index));
+                }
+            }
+        }
+        entries.putAll(checksums);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            sb.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n');
+        }
+        Path tempFile = folder.resolve(MANIFEST_NAME + ".tmp");
+        Files.write(tempFile, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java runtime must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.S3FileUtils;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Moves extracted files into their final location without writing the data a second time.
+ *
+ * On a local file system the file is renamed, atomically if the file system supports it. If the images are stored in s3, the file is uploaded
+ * with the transfer manager, which uses a multipart upload for large files. Several files can be placed in parallel on a bounded pool.
+ *
+ */
+
+@Log4j2
+public final class FilePlacement {
+
+    private static final int PLACEMENT_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
+    private FilePlacement() {
+    }
+
+    /**
+     * Move several files in parallel. The progress and the duration of each file are logged and recorded as metrics.
+     *
+     * @param files source and destination of each file
+     * @throws IOException if a file cannot be moved, the remaining files are not moved
+     */
+
+    public static void moveAll(Map<Path, Path> files) throws IOException {
+        String storage = ConfigurationHelper.getInstance().useS3() ? "s3" : "local";
+        int total = files.size();
+        AtomicInteger placed = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(PLACEMENT_THREADS);
+        try {
+            List<Future<Void>> placements = new ArrayList<>();
+            for (Map.Entry<Path, Path> entry : files.entrySet()) {
+                placements.add(executor.submit(() -> {
+                    long fileStart = System.nanoTime();
+                    long size = Files.size(entry.getKey());
+                    move(entry.getKey(), entry.getValue());
+                    double seconds = MetricsTransferListener.seconds(System.nanoTime() - fileStart);
+                    TicketMetrics metrics = TicketMetrics.getInstance();
+                    metrics.observe("file_placement_duration_seconds", TicketMetrics.DURATION_BUCKETS, seconds, "storage", storage);
+                    metrics.increment("file_placement_bytes_total", size, "storage", storage);
+                    log.debug("placed {} ({} bytes) in {} s, {}/{} files done", entry.getValue(), size, seconds, placed.incrementAndGet(), total);
+                    return null;
+                }));
+            }
+            for (Future<Void> placement : placements) {
+                placement.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Placement of files was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("placed {} files in {} s", total, MetricsTransferListener.seconds(System.nanoTime() - start));
+    }
+
+    /**
+     * Move a file into its final location. The source file does not exist afterwards.
+     *
+     * @param source the extracted file
+     * @param destination the final location
+     * @throws IOException
+     */
+
+    public static void move(Path source, Path destination) throws IOException {
+        if (ConfigurationHelper.getInstance().useS3()) {
+            upload(source, destination);
+            Files.delete(source);
+            return;
+        }
+        try {
+            Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // different file system, the data gets copied
+            log.debug("atomic move from {} to {} is not possible", source, destination);
+            Files.move(source, destination);
+        }
+    }
+
+    private static void upload(Path source, Path destination) throws IOException {
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        String bucket = ConfigurationHelper.getInstance().getS3Bucket();
+        String key = S3FileUtils.path2Key(destination);
+        try {
+            utils.getTransferManager()
+                    .uploadFile(b -> b.putObjectRequest(r -> r.bucket(bucket).key(key)).source(source))
+                    .completionFuture()
+                    .join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to upload " + source + " to " + bucket + "/" + key, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.helper.S3FileUtils;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Checks if folders are empty or if objects exist, without listing the whole content.
+ *
+ * The check stops at the first entry: locally a single step of a {@link DirectoryStream} is read, in s3 only one key is requested. Folders that
+ * were found empty are remembered for a short time, so a burst of tickets for the same process checks the storage only once. A handler that
+ * writes into a folder claims it with {@link #claimIfEmpty(Path...)} and releases it with {@link #release(Path...)} after the last file was
+ * written. A claimed folder is never reported as empty, so no other ticket can import into it while it is filled. The storage is read without a
+ * global lock, so slow s3 requests for one folder do not delay the checks of other folders.
+ *
+ */
+
+@Log4j2
+public class FolderProbe {
+
+    // long enough for a batch of tickets, short enough to notice files written by other components
+    private static final long EMPTY_TTL = TimeUnit.SECONDS.toNanos(30);
+
+    private static FolderProbe instance;
+
+    // folder -> expiry of the empty result
+    private final Map<Path, Long> emptyFolders = new ConcurrentHashMap<>();
+
+    // folders that are currently written by a handler
+    private final Set<Path> claimedFolders = ConcurrentHashMap.newKeySet();
+
+    // counts released claims, an empty result read during a release is not cached
+    private final AtomicLong releases = new AtomicLong();
+
+    private FolderProbe() {
+    }
+
+    public static synchronized FolderProbe getInstance() {
+        if (instance == null) {
+            instance = new FolderProbe();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if the folder is empty or does not exist.
+     *
+     * @param folder the folder to check
+     * @return true if the folder contains no entry
+     * @throws IOException if the storage cannot be read
+     */
+
+    public boolean isEmpty(Path folder) throws IOException {
+        if (claimedFolders.contains(folder)) {
+            return false;
+        }
+        Long expiry = emptyFolders.get(folder);
+        if (expiry != null) {
+            if (expiry - System.nanoTime() > 0) {
+                return true;
+            }
+            emptyFolders.remove(folder, expiry);
+        }
+        // the storage is read without a lock, a folder released in the meantime may have been filled
+        long releasesBefore = releases.get();
+        boolean empty = isEmptyInStorage(folder);
+        if (empty && releases.get() == releasesBefore && !claimedFolders.contains(folder)) {
+            emptyFolders.put(folder, System.nanoTime() + EMPTY_TTL);
+        }
+        return empty;
+    }
+
+    /**
+     * Claim folders for writing, if all of them are empty. The folders are claimed before the storage is checked, so only one ticket can claim a
+     * folder and tickets for other folders are not blocked.
+     *
+     * @param folders the folders to fill
+     * @return true if all folders were empty and are claimed now, the caller must call {@link #release(Path...)} afterwards
+     * @throws IOException if the storage cannot be read
+     */
+
+    public boolean claimIfEmpty(Path... folders) throws IOException {
+        Set<Path> distinctFolders = new LinkedHashSet<>(Arrays.asList(folders));
+        List<Path> claimed = new ArrayList<>();
+        boolean allEmpty = false;
+        try {
+            for (Path folder : distinctFolders) {
+                if (!claimedFolders.add(folder)) {
+                    // claimed by another ticket
+                    return false;
+                }
+                claimed.add(folder);
+            }
+            for (Path folder : distinctFolders) {
+                Long expiry = emptyFolders.remove(folder);
+                if ((expiry == null || expiry - System.nanoTime() <= 0) && !isEmptyInStorage(folder)) {
+                    return false;
+                }
+            }
+            allEmpty = true;
+            return true;
+        } finally {
+            if (!allEmpty) {
+                claimedFolders.removeAll(claimed);
+            }
+        }
+    }
+
+    /**
+     * Release claimed folders after writing, the next check reads the storage again
+     */
+
+    public void release(Path... folders) {
+        releases.incrementAndGet();
+        for (Path folder : folders) {
+            emptyFolders.remove(folder);
+            claimedFolders.remove(folder);
+        }
+    }
+
+    /**
+     * Check if at least one object with the given prefix exists in the bucket. Only a single key is requested.
+     *
+     * @param bucket name of the bucket
+     * @param prefix key or prefix of the object
+     * @return true if an object was found
+     * @throws IOException if the bucket cannot be read
+     */
+
+    public boolean exists(String bucket, String prefix) throws IOException {
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        try {
+            return utils.getS3().listObjectsV2(r -> r.bucket(bucket).prefix(prefix).maxKeys(1)).join().keyCount() > 0;
+        } catch (CompletionException e) {
+            throw new IOException("Unable to list " + bucket + "/" + prefix, e.getCause());
+        }
+    }
+
+    /**
+     * Forget the cached result of a folder, must be called after files were written into it
+     */
+
+    public void invalidate(Path folder) {
+        emptyFolders.remove(folder);
+    }
+
+    private boolean isEmptyInStorage(Path folder) throws IOException {
+        if (ConfigurationHelper.getInstance().useS3()) {
+            String prefix = S3FileUtils.path2Key(folder);
+            return !exists(ConfigurationHelper.getInstance().getS3Bucket(), prefix.endsWith("/") ? prefix : prefix + "/");
+        }
+        return isLocalFolderEmpty(folder);
+    }
+
+    private static boolean isLocalFolderEmpty(Path folder) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            return !stream.iterator().hasNext();
+        } catch (NoSuchFileException e) {
+            log.trace("folder {} does not exist", folder);
+            return true;
+        }
+    }
+}
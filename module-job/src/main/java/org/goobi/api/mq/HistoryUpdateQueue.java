@@ -0,0 +1,128 @@
+package org.goobi.api.mq;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.beans.Process;
+import org.goobi.production.flow.jobs.HistoryAnalyserJob;
+
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Updates the history of processes in the background.
+ *
+ * Handlers add the id of a process instead of computing its history on the ticket thread. A worker takes the queued ids every few seconds,
+ * a process that was added several times in the meantime is updated only once. Only the history entries are written, the process itself is not
+ * saved. By then the first automatic step may already run, and saving the process loaded here could overwrite its changes. The queue is only
+ * kept in memory. Ids that are lost are updated by the next run of the history job of the Goobi core.
+ *
+ */
+
+@Log4j2
+public class HistoryUpdateQueue {
+
+    private static final long DELAY_SECONDS = 5;
+
+    private static final int BATCH_SIZE = 100;
+
+    private static HistoryUpdateQueue instance;
+
+    // queued process ids in insertion order, without duplicates
+    private final Set<Integer> processIds = new LinkedHashSet<>();
+
+    private final Object drainLock = new Object();
+
+    private final ScheduledExecutorService scheduler;
+
+    private HistoryUpdateQueue() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-update-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::drain, DELAY_SECONDS, DELAY_SECONDS, TimeUnit.SECONDS);
+        TicketMetrics.getInstance().registerGauge("history_update_queue_size", this::getSize);
+    }
+
+    public static synchronized HistoryUpdateQueue getInstance() {
+        if (instance == null) {
+            instance = new HistoryUpdateQueue();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the worker and update the queued processes, if the queue was used. This is called when the web application is stopped, while the
+     * database is still available.
+     */
+
+    static void shutdown() {
+        HistoryUpdateQueue queue;
+        synchronized (HistoryUpdateQueue.class) {
+            queue = instance;
+        }
+        if (queue != null) {
+            queue.scheduler.shutdownNow();
+            queue.drain();
+        }
+    }
+
+    /**
+     * Update the history of a process soon
+     *
+     * @param processId id of the process
+     */
+
+    public synchronized void enqueue(int processId) {
+        processIds.add(processId);
+    }
+
+    public synchronized int getSize() {
+        return processIds.size();
+    }
+
+    private void drain() {
+        // the scheduled worker and the shutdown must not update the same process at the same time
+        synchronized (drainLock) {
+            drainBatches();
+        }
+    }
+
+    private void drainBatches() {
+        List<Integer> batch;
+        while (!(batch = nextBatch()).isEmpty()) {
+            for (Integer processId : batch) {
+                try {
+                    Process process = ProcessManager.getProcessById(processId);
+                    // the history entries are stored by the history job itself, the process is not saved
+                    if (process != null) {
+                        HistoryAnalyserJob.updateHistoryForProzess(process);
+                    }
+                    TicketMetrics.getInstance().increment("history_updates_total", 1);
+                } catch (RuntimeException e) {
+                    // keep the worker alive, the history of the process can be updated later
+                    log.error("Unable to update the history of process {}", processId, e);
+                    TicketMetrics.getInstance().increment("history_update_errors_total", 1);
+                }
+            }
+        }
+    }
+
+    private synchronized List<Integer> nextBatch() {
+        List<Integer> batch = new ArrayList<>();
+        for (Integer processId : processIds) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            batch.add(processId);
+        }
+        processIds.removeAll(batch);
+        return batch;
+    }
+}
@@ -2,14 +2,12 @@ package org.goobi.api.mq;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 import org.apache.commons.lang.StringUtils;
 import org.goobi.beans.Process;
 import org.goobi.beans.Processproperty;
-import org.goobi.beans.Step;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginReturnValue;
 
@@ -17,15 +15,10 @@ import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.S3FileUtils;
 import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.persistence.managers.ProcessManager;
 import de.sub.goobi.persistence.managers.PropertyManager;
 import lombok.extern.log4j.Log4j2;
-import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
-import software.amazon.awssdk.services.s3.model.Delete;
-import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 
 /**
  * 
@@ -39,23 +32,29 @@ public class ImportAudioDataHandler implements TicketHandler<PluginReturnValue>
 
     @Override
     public PluginReturnValue call(TaskTicket ticket) {
+        if (AsyncTicketExecutor.isAsync(ticket)) {
+            // release the consumer thread, the ticket is processed in the background. It deletes the object if the upload is not allowed, so it
+            // must not run again
+            return AsyncTicketExecutor.getInstance().submit(ticket, getTicketHandlerName(), false, () -> execute(ticket));
+        }
+        return execute(ticket);
+    }
+
+    private PluginReturnValue execute(TaskTicket ticket) {
         String bucket = ticket.getProperties().get("bucket");
 
         String s3Key = ticket.getProperties().get("s3Key");
         Path destinationFolder = Paths.get(ticket.getProperties().get("destination"));
 
         S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
-        S3AsyncClient s3 = utils.getS3();
-
-        Process process = ProcessManager.getProcessById(ticket.getProcessId());
 
-        // check process status
+        // check process status, only the active steps are read
         boolean uploadIsAllowed = false;
-        Step currentStep = process.getAktuellerSchritt();
+        ProcessStateCache.StepState currentStep = ProcessStateCache.getInstance().getCurrentStep(ticket.getProcessId());
         if (currentStep != null) {
             // no open step found, abort
 
-            switch (currentStep.getTitel()) {
+            switch (currentStep.getTitle()) {
                 case "Bibliographic import":
                 case "Video data import":
                 case "Audio (Video) data import":
@@ -82,7 +81,7 @@ public class ImportAudioDataHandler implements TicketHandler<PluginReturnValue>
             Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.ERROR, "File import aborted, process has not the correct status.",
                     "ticket");
 
-            deleteObject(s3, bucket, s3Key);
+            S3DeleteBatcher.getInstance().delete(bucket, s3Key);
             log.info("deleted file {} from bucket", s3Key);
             return PluginReturnValue.ERROR;
         }
@@ -106,25 +105,29 @@ public class ImportAudioDataHandler implements TicketHandler<PluginReturnValue>
         CompletableFuture<CopyObjectResponse> copyRes = utils.getS3().copyObject(copyReq);
         copyRes.join();
 
-        List<Processproperty> properties = PropertyManager.getProcessPropertiesForProcess(process.getId());
-        if (!properties.stream().anyMatch(pp -> "s3_import_bucket".equals(pp.getTitel()))) {
-            addProcesspropertyToProcess(process, "s3_import_bucket", bucket);
+        List<Processproperty> properties = PropertyManager.getProcessPropertiesForProcess(ticket.getProcessId());
+        boolean hasBucket = properties.stream().anyMatch(pp -> "s3_import_bucket".equals(pp.getTitel()));
+        boolean hasPrefix = properties.stream().anyMatch(pp -> "s3_import_prefix".equals(pp.getTitel()));
+        if (!hasBucket) {
+            addProcesspropertyToProcess(ticket.getProcessId(), "s3_import_bucket", bucket);
         }
-        if (!properties.stream().anyMatch(pp -> "s3_import_prefix".equals(pp.getTitel()))) {
-            String prefix = s3Key.substring(0, s3Key.lastIndexOf('/'));
-            addProcesspropertyToProcess(process, "s3_import_prefix", prefix);
+        if (!hasPrefix) {
+            addProcesspropertyToProcess(ticket.getProcessId(), "s3_import_prefix", s3Key.substring(0, s3Key.lastIndexOf('/')));
         }
 
         String deleteFiles = ticket.getProperties().get("deleteFiles");
         if (StringUtils.isNotBlank(deleteFiles) && "true".equalsIgnoreCase(deleteFiles)) {
-            deleteObject(s3, bucket, s3Key);
+            S3DeleteBatcher.getInstance().delete(bucket, s3Key);
             log.info("deleted file {} from bucket", s3Key);
         }
 
         return PluginReturnValue.FINISH;
     }
 
-    private void addProcesspropertyToProcess(Process process, String name, String value) {
+    private void addProcesspropertyToProcess(int processId, String name, String value) {
+        // the property only needs the id of its owner, the process itself is not loaded
+        Process process = new Process();
+        process.setId(processId);
         Processproperty pp = new Processproperty();
         pp.setProzess(process);
         pp.setTitel(name);
@@ -137,20 +140,4 @@ public class ImportAudioDataHandler implements TicketHandler<PluginReturnValue>
     public String getTicketHandlerName() {
         return "importAudioData";
     }
-
-    private void deleteObject(S3AsyncClient s3, String bucket, String key) {
-        ArrayList<ObjectIdentifier> toDelete = new ArrayList<>();
-        toDelete.add(ObjectIdentifier.builder()
-                .key(key)
-                .build());
-
-        DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
-                .bucket(bucket)
-                .delete(Delete.builder()
-                        .objects(toDelete)
-                        .build())
-                .build();
-
-        s3.deleteObjects(dor);
-    }
 }
@@ -1,41 +1,40 @@
 package org.goobi.api.mq;
 
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.XMLConfiguration;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.SystemUtils;
+import org.goobi.beans.GoobiProperty;
+import org.goobi.beans.GoobiProperty.PropertyOwnerType;
 import org.goobi.beans.Process;
-import org.goobi.beans.Processproperty;
 import org.goobi.beans.Step;
 import org.goobi.managedbeans.LoginBean;
 import org.goobi.production.enums.PluginReturnValue;
-import org.goobi.production.flow.jobs.HistoryAnalyserJob;
 
 import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.BeanHelper;
 import de.sub.goobi.helper.Helper;
 import de.sub.goobi.helper.S3FileUtils;
-import de.sub.goobi.helper.ScriptThreadWithoutHibernate;
 import de.sub.goobi.helper.StorageProvider;
 import de.sub.goobi.helper.enums.StepEditType;
 import de.sub.goobi.helper.enums.StepStatus;
@@ -45,22 +44,14 @@ import de.sub.goobi.persistence.managers.ProcessManager;
 import de.sub.goobi.persistence.managers.PropertyManager;
 import de.sub.goobi.persistence.managers.StepManager;
 import lombok.extern.log4j.Log4j2;
-import software.amazon.awssdk.services.s3.S3AsyncClient;
-import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
-import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
-import software.amazon.awssdk.services.s3.model.Delete;
-import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
-import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import ugh.dl.ContentFile;
 import ugh.dl.DigitalDocument;
 import ugh.dl.DocStruct;
+import ugh.dl.DocStructType;
 import ugh.dl.Fileformat;
 import ugh.dl.Metadata;
 import ugh.dl.MetadataType;
 import ugh.dl.Person;
-import ugh.dl.Prefs;
 import ugh.exceptions.MetadataTypeNotAllowedException;
 import ugh.exceptions.PreferencesException;
 import ugh.exceptions.ReadException;
@@ -72,6 +63,18 @@ import ugh.fileformats.mets.MetsMods;
 @Log4j2
 public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
 
+    // metadata and structure types used by the import, they are resolved once per ruleset
+    private static final String[] METADATA_TYPES = { "TitleDocMain", "ShootType", "CatalogIDDigital", "PlaceOfPublication", "Contains", "People",
+            "Description", "Usage", "AccessLicense", "Photographer", "Creator", "physPageNumber", "logicalPageNumber", "pathimagefiles" };
+
+    private static final String[] DOCSTRUCT_TYPES = { "EditorialPhotography", "BoundBook", "page" };
+
+    // shoots of a multi shoot archive that are imported at the same time
+    private static final int SHOOT_THREADS = 4;
+
+    // checksum of the csv file a process was created from, written after the images were placed
+    private static final String SOURCE_CSV_PROPERTY = "ep_import_csv_checksum";
+
     @Override
     public String getTicketHandlerName() {
         return "importEP";
@@ -79,21 +82,100 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
 
     @Override
     public PluginReturnValue call(TaskTicket ticket) {
+        if (AsyncTicketExecutor.isAsync(ticket)) {
+            // release the consumer thread, the ticket is processed in the background. A failed import deletes the archive or moves it to the
+            // failed folder, so it must not run again
+            return AsyncTicketExecutor.getInstance().submit(ticket, getTicketHandlerName(), false, () -> execute(ticket));
+        }
+        return TicketDeferral.resolve(ticket, getTicketHandlerName(), execute(ticket));
+    }
+
+    private PluginReturnValue execute(TaskTicket ticket) {
 
         log.info("start EP import");
 
-        Process templateUpdate = ProcessManager.getProcessById(Integer.parseInt(ticket.getProperties().get("updateTemplateId")));
-        Process templateNew = ProcessManager.getProcessById(Integer.parseInt(ticket.getProperties().get("templateId")));
+        // reserve the space for the extracted files and for the copies in the process folder
+        DiskSpaceReservations.Reservation reservation;
+        try {
+            reservation = reserveDiskSpace(ticket);
+        } catch (IOException e) {
+            log.error("Unable to read archive " + ticket.getProperties().get("s3Key"), e);
+            FileUtils.deleteQuietly(Paths.get(ticket.getProperties().get("filename")).toFile());
+            moveZipToFailed(ticket);
+            return PluginReturnValue.ERROR;
+        }
+        if (reservation == null) {
+            // not enough space right now, try again later
+            return TicketDeferral.defer(ticket, getTicketHandlerName());
+        }
+        try {
+            return importArchive(ticket);
+        } finally {
+            reservation.close();
+        }
+    }
+
+    private DiskSpaceReservations.Reservation reserveDiskSpace(TaskTicket ticket) throws IOException {
+        long size;
+        if ("true".equalsIgnoreCase(ticket.getProperties().get("streamingImport"))) {
+            // no central directory available, use the size of the archive
+            S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+            try {
+                size = utils.getS3()
+                        .headObject(r -> r.bucket(ticket.getProperties().get("bucket")).key(ticket.getProperties().get("s3Key")))
+                        .join()
+                        .contentLength();
+            } catch (CompletionException e) {
+                throw new IOException(e.getCause());
+            }
+        } else {
+            size = UnzipFileHandler.getUncompressedSize(Paths.get(ticket.getProperties().get("filename")));
+        }
+        List<Path> folders = new ArrayList<>();
+        if (!isExtractDirectly(ticket)) {
+            folders.add(DiskSpaceReservations.getTempFolder());
+        }
+        if (!ConfigurationHelper.getInstance().useS3()) {
+            folders.add(Paths.get(ConfigurationHelper.getInstance().getMetadataFolder()));
+        }
+        return DiskSpaceReservations.getInstance().reserve(size, folders.toArray(new Path[0]));
+    }
+
+    private static boolean isExtractDirectly(TaskTicket ticket) {
+        return "true".equalsIgnoreCase(ticket.getProperties().get("extractDirectly")) && !ConfigurationHelper.getInstance().useS3();
+    }
+
+    private PluginReturnValue importArchive(TaskTicket ticket) {
 
-        Prefs prefs = templateNew.getRegelsatz().getPreferences();
+        TemplateCache templateCache = TemplateCache.getInstance();
+        Process templateUpdate = templateCache.getTemplate(Integer.parseInt(ticket.getProperties().get("updateTemplateId")), METADATA_TYPES,
+                DOCSTRUCT_TYPES).getTemplate();
+        TemplateCache.CachedTemplate cachedTemplate = templateCache.getTemplate(Integer.parseInt(ticket.getProperties().get("templateId")),
+                METADATA_TYPES, DOCSTRUCT_TYPES);
+        Process templateNew = cachedTemplate.getTemplate();
+        TemplateCache.RulesetTypes types = cachedTemplate.getTypes();
 
-        List<Path> tifFiles = new ArrayList<>();
         Path zipfFile = Paths.get(ticket.getProperties().get("filename"));
+        // streaming import: the zip file was not downloaded, read it directly from s3
+        boolean streamingImport = "true".equalsIgnoreCase(ticket.getProperties().get("streamingImport"));
         Path workDir = null;
         Path directory = null;
+        // checksums of the extracted files, computed while the files are written
+        Map<Path, String> checksums = new HashMap<>();
         try {
-            workDir = Files.createTempDirectory(UUID.randomUUID().toString());
-            directory = UnzipFileHandler.unzip(zipfFile, workDir);
+            if (isExtractDirectly(ticket)) {
+                // use the file system of the process folders, so the images can be renamed into place
+                workDir = Paths.get(ConfigurationHelper.getInstance().getMetadataFolder(), "." + UUID.randomUUID().toString());
+                Files.createDirectories(workDir);
+            } else {
+                workDir = Files.createTempDirectory(UUID.randomUUID().toString());
+            }
+            if (streamingImport) {
+                directory = UnzipFileHandler.unzipFromS3(ticket.getProperties().get("bucket"), ticket.getProperties().get("s3Key"), workDir,
+                        checksums);
+            } else {
+                directory = UnzipFileHandler.unzip(zipfFile, workDir, checksums);
+            }
 
         } catch (IOException e2) {
             log.error(e2);
@@ -106,23 +188,11 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
 
         log.info("use template " + templateNew.getId());
 
-        Path csvFile = null;
-        // check if the extracted file contains a sub folder
-
-        try (DirectoryStream<Path> folderFiles = Files.newDirectoryStream(directory)) {
-            for (Path file : folderFiles) {
-                String fileName = file.getFileName().toString();
-                log.info("found " + fileName);
-                String fileNameLower = fileName.toLowerCase();
-                if (fileNameLower.endsWith(".csv") && !fileNameLower.startsWith(".")) {
-                    csvFile = file;
-                    log.info("set csv file to " + fileName);
-                }
-                if ((fileNameLower.endsWith(".tif") || fileNameLower.endsWith(".tiff") || fileNameLower.endsWith(".mp4"))
-                        && !fileNameLower.startsWith(".")) {
-                    tifFiles.add(file);
-                }
-            }
+        // an archive can contain several shoots, each with its own csv file
+        List<Shoot> shoots;
+        List<Path> unmatchedImages = new ArrayList<>();
+        try {
+            shoots = findShoots(workDir, directory, unmatchedImages);
         } catch (IOException e1) {
             log.error(e1);
             FileUtils.deleteQuietly(zipfFile.toFile());
@@ -130,76 +200,234 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
             moveZipToFailed(ticket);
             return PluginReturnValue.ERROR;
         }
-
-        Collections.sort(tifFiles);
-        try {
-            boolean wcp = createProcess(csvFile, tifFiles, prefs, templateNew, templateUpdate);
-            if (!wcp) {
-                FileUtils.deleteQuietly(zipfFile.toFile());
-                FileUtils.deleteQuietly(workDir.toFile());
-                moveZipToFailed(ticket);
-                return PluginReturnValue.ERROR;
-
-            } else {
-                // process created. Now delete this folder.
-                FileUtils.deleteQuietly(zipfFile.toFile());
-                FileUtils.deleteQuietly(workDir.toFile());
-                S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
-                deleteObject(utils.getS3(), ticket.getProperties().get("bucket"), ticket.getProperties().get("s3Key"));
-                return PluginReturnValue.FINISH;
-            }
-        } catch (FileNotFoundException e) {
-            log.error("Cannot import csv file: " + csvFile + "\n", e);
+        if (!unmatchedImages.isEmpty()) {
+            // the images would be lost, the whole archive must be checked
+            log.error("Editorial ingest: no csv file found for {} images in {}, e.g. {}", unmatchedImages.size(), ticket.getProperties().get("s3Key"),
+                    unmatchedImages.get(0).getFileName());
             FileUtils.deleteQuietly(zipfFile.toFile());
             FileUtils.deleteQuietly(workDir.toFile());
             moveZipToFailed(ticket);
             return PluginReturnValue.ERROR;
-        } catch (PreferencesException | WriteException | ReadException | IOException | InterruptedException | SwapException | DAOException e) {
-            log.error("Unable to create Goobi Process\n", e);
+        }
+        List<Shoot> shootsWithImages = new ArrayList<>();
+        for (Shoot shoot : shoots) {
+            if (shoot.getImages().isEmpty()) {
+                log.warn("Editorial ingest: shoot {} contains no images, no process is created", shoot.getCsvFile().getFileName());
+            } else {
+                shootsWithImages.add(shoot);
+            }
+        }
+        if (shootsWithImages.isEmpty()) {
+            log.error("Editorial ingest: no shoot with images found in {}", ticket.getProperties().get("s3Key"));
             FileUtils.deleteQuietly(zipfFile.toFile());
             FileUtils.deleteQuietly(workDir.toFile());
             moveZipToFailed(ticket);
             return PluginReturnValue.ERROR;
         }
+
+        boolean useTitleIndex = "true".equalsIgnoreCase(ticket.getProperties().get("useTitleIndex"));
+        // shoots with the same reference are imported one after the other, they would create the same process
+        List<List<Shoot>> groups = groupByReference(shootsWithImages);
+        List<Shoot> failedShoots = new ArrayList<>();
+        if (groups.size() == 1) {
+            failedShoots.addAll(importShoots(groups.get(0), checksums, types, templateNew, templateUpdate, useTitleIndex));
+        } else {
+            // the templates and the ruleset are shared, the processes are created in parallel
+            log.info("found {} shoots in {}", shootsWithImages.size(), ticket.getProperties().get("s3Key"));
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(groups.size(), SHOOT_THREADS));
+            try {
+                Map<List<Shoot>, Future<List<Shoot>>> results = new LinkedHashMap<>();
+                for (List<Shoot> group : groups) {
+                    results.put(group, executor.submit(() -> importShoots(group, checksums, types, templateNew, templateUpdate, useTitleIndex)));
+                }
+                for (Map.Entry<List<Shoot>, Future<List<Shoot>>> result : results.entrySet()) {
+                    try {
+                        failedShoots.addAll(result.getValue().get());
+                    } catch (ExecutionException e) {
+                        log.error("Unable to import shoot {}", result.getKey().get(0).getCsvFile(), e.getCause());
+                        failedShoots.addAll(result.getKey());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failedShoots.addAll(shootsWithImages);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        FileUtils.deleteQuietly(zipfFile.toFile());
+        FileUtils.deleteQuietly(workDir.toFile());
+        if (!failedShoots.isEmpty()) {
+            // processes of the other shoots are kept, they are recognized and skipped when the archive is imported again
+            log.error("Editorial ingest: {} of {} shoots in {} failed", failedShoots.size(), shootsWithImages.size(),
+                    ticket.getProperties().get("s3Key"));
+            moveZipToFailed(ticket);
+            return PluginReturnValue.ERROR;
+        }
+        // processes created. Now delete the archive.
+        S3DeleteBatcher.getInstance().delete(ticket.getProperties().get("bucket"), ticket.getProperties().get("s3Key"));
+        return PluginReturnValue.FINISH;
     }
 
-    private void moveZipToFailed(TaskTicket ticket) {
-        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
-        String bucket = ticket.getProperties().get("bucket");
-        String key = ticket.getProperties().get("s3Key");
-        log.debug(ticket.getProperties());
-        log.debug("Copying from {}/{} to {}/{}", bucket, key, bucket, "failed/" + key.substring(key.lastIndexOf('/') + 1));
+    /**
+     * Import shoots one after the other
+     *
+     * @return the shoots that failed
+     */
+
+    private List<Shoot> importShoots(List<Shoot> shoots, Map<Path, String> checksums, TemplateCache.RulesetTypes types, Process templateNew,
+            Process templateUpdate, boolean useTitleIndex) {
+        List<Shoot> failedShoots = new ArrayList<>();
+        for (Shoot shoot : shoots) {
+            if (!importShoot(shoot, checksums, types, templateNew, templateUpdate, useTitleIndex)) {
+                failedShoots.add(shoot);
+            }
+        }
+        return failedShoots;
+    }
 
-        CopyObjectRequest copyReq = CopyObjectRequest.builder()
-                .sourceBucket(bucket)
-                .sourceKey(key)
-                .destinationBucket(bucket)
-                .destinationKey("failed/" + key.substring(key.lastIndexOf('/') + 1))
-                .build();
+    /**
+     * Group the shoots by the reference in their csv file. A csv file that cannot be read gets a group of its own, it fails during the import.
+     */
+
+    private static List<List<Shoot>> groupByReference(List<Shoot> shoots) {
+        Map<String, List<Shoot>> groups = new LinkedHashMap<>();
+        for (Shoot shoot : shoots) {
+            String group = shoot.getCsvFile().toString();
+            try {
+                String reference = ShootMetadata.read(shoot.getCsvFile()).getOrNull(ShootMetadata.Column.REFERENCE);
+                if (reference != null) {
+                    group = reference.replaceAll(" |\t", "_");
+                }
+            } catch (IOException e) {
+                log.debug("Unable to read reference of {}", shoot.getCsvFile(), e);
+            }
+            groups.computeIfAbsent(group, g -> new ArrayList<>()).add(shoot);
+        }
+        return new ArrayList<>(groups.values());
+    }
 
-        CompletableFuture<CopyObjectResponse> copyRes = utils.getS3().copyObject(copyReq);
-        copyRes.join();
+    /**
+     * Create the process of a single shoot, the result is logged and recorded as metric
+     */
 
-        deleteObject(utils.getS3(), ticket.getProperties().get("bucket"), ticket.getProperties().get("s3Key"));
+    private boolean importShoot(Shoot shoot, Map<Path, String> checksums, TemplateCache.RulesetTypes types, Process templateNew,
+            Process templateUpdate, boolean useTitleIndex) {
+        boolean created = false;
+        try {
+            created = createProcess(shoot.getCsvFile(), shoot.getImages(), checksums, types, templateNew, templateUpdate, useTitleIndex);
+        } catch (FileNotFoundException e) {
+            log.error("Cannot import csv file: " + shoot.getCsvFile() + "\n", e);
+        } catch (PreferencesException | WriteException | ReadException | IOException | InterruptedException | SwapException | DAOException e) {
+            log.error("Unable to create Goobi Process\n", e);
+        }
+        if (created) {
+            log.info("shoot {}: created process with {} files", shoot.getCsvFile().getFileName(), shoot.getImages().size());
+        } else {
+            log.error("shoot {}: no process created", shoot.getCsvFile().getFileName());
+        }
+        TicketMetrics.getInstance().increment("ep_shoots_total", 1, "result", created ? "created" : "failed");
+        return created;
     }
 
-    private void deleteObject(S3AsyncClient s3, String bucket, String key) {
-        ArrayList<ObjectIdentifier> toDelete = new ArrayList<>();
-        toDelete.add(ObjectIdentifier.builder()
-                .key(key)
-                .build());
+    /**
+     * Group the extracted files by shoot. Each folder is searched for csv files. A single csv file gets all images of its folder, if there are
+     * several, an image belongs to the csv file with the longest name that is a prefix of the image name.
+     *
+     * @param workDir the extraction folder
+     * @param directory the folder with the extracted data, the first sub folder if the archive contains one
+     * @param unmatchedImages images that belong to no csv file are added to this list
+     * @return the shoots
+     * @throws IOException
+     */
+
+    private static List<Shoot> findShoots(Path workDir, Path directory, List<Path> unmatchedImages) throws IOException {
+        List<Path> folders = new ArrayList<>();
+        folders.add(directory);
+        // other top level folders of a multi shoot archive
+        try (DirectoryStream<Path> folderFiles = Files.newDirectoryStream(workDir)) {
+            for (Path file : folderFiles) {
+                if (Files.isDirectory(file) && !file.equals(directory) && !file.getFileName().toString().startsWith("__MAC")) {
+                    folders.add(file);
+                }
+            }
+        }
+        List<Shoot> shoots = new ArrayList<>();
+        for (Path folder : folders) {
+            List<Path> csvFiles = new ArrayList<>();
+            List<Path> tifFiles = new ArrayList<>();
+            try (DirectoryStream<Path> folderFiles = Files.newDirectoryStream(folder)) {
+                for (Path file : folderFiles) {
+                    String fileName = file.getFileName().toString();
+                    log.info("found " + fileName);
+                    String fileNameLower = fileName.toLowerCase();
+                    if (fileNameLower.endsWith(".csv") && !fileNameLower.startsWith(".")) {
+                        csvFiles.add(file);
+                        log.info("set csv file to " + fileName);
+                    }
+                    if ((fileNameLower.endsWith(".tif") || fileNameLower.endsWith(".tiff") || fileNameLower.endsWith(".mp4"))
+                            && !fileNameLower.startsWith(".")) {
+                        tifFiles.add(file);
+                    }
+                }
+            }
+            Collections.sort(csvFiles);
+            Collections.sort(tifFiles);
+            if (csvFiles.size() == 1) {
+                shoots.add(new Shoot(csvFiles.get(0), tifFiles));
+                continue;
+            }
+            Map<Path, Shoot> shootsOfFolder = new LinkedHashMap<>();
+            for (Path csvFile : csvFiles) {
+                shootsOfFolder.put(csvFile, new Shoot(csvFile, new ArrayList<>()));
+            }
+            for (Path tifFile : tifFiles) {
+                Path csvFile = getCsvFileOfImage(csvFiles, tifFile);
+                if (csvFile == null) {
+                    log.error("Editorial ingest: no csv file found for {}", tifFile.getFileName());
+                    unmatchedImages.add(tifFile);
+                } else {
+                    shootsOfFolder.get(csvFile).getImages().add(tifFile);
+                }
+            }
+            shoots.addAll(shootsOfFolder.values());
+        }
+        return shoots;
+    }
 
-        DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
-                .bucket(bucket)
-                .delete(Delete.builder()
-                        .objects(toDelete)
-                        .build())
-                .build();
+    private static Path getCsvFileOfImage(List<Path> csvFiles, Path image) {
+        String imageName = image.getFileName().toString();
+        Path match = null;
+        int matchLength = 0;
+        for (Path csvFile : csvFiles) {
+            String csvName = csvFile.getFileName().toString();
+            String prefix = csvName.substring(0, csvName.length() - 4);
+            if (imageName.startsWith(prefix) && prefix.length() > matchLength) {
+                match = csvFile;
+                matchLength = prefix.length();
+            }
+        }
+        return match;
+    }
 
-        s3.deleteObjects(dor);
+    private void moveZipToFailed(TaskTicket ticket) {
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        String bucket = ticket.getProperties().get("bucket");
+        String key = ticket.getProperties().get("s3Key");
+        String failedKey = "failed/" + key.substring(key.lastIndexOf('/') + 1);
+        log.debug(ticket.getProperties());
+        log.debug("Moving from {}/{} to {}/{}", bucket, key, bucket, failedKey);
+        try {
+            S3ObjectMover.move(utils.getS3(), bucket, key, bucket, failedKey);
+        } catch (IOException e) {
+            // the archive stays in the upload prefix
+            log.error("Unable to move {}/{} to {}", bucket, key, failedKey, e);
+        }
     }
 
-    private boolean createProcess(Path csvFile, List<Path> tifFiles, Prefs prefs, Process templateNew, Process templateUpdate)
+    private boolean createProcess(Path csvFile, List<Path> tifFiles, Map<Path, String> checksums, TemplateCache.RulesetTypes types,
+            Process templateNew, Process templateUpdate, boolean useTitleIndex)
             throws FileNotFoundException, IOException, InterruptedException, SwapException, DAOException, PreferencesException, WriteException,
             ReadException {
         log.info("read csv file " + csvFile.getFileName().toString());
@@ -207,11 +435,9 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
             throw new FileNotFoundException();
         }
 
-        Map<String, Integer> indexMap = new HashMap<>();
-        List<String[]> values = new ArrayList<>();
-        readFile(csvFile, indexMap, values);
+        ShootMetadata metadata = ShootMetadata.read(csvFile);
 
-        String referenceNumber = getValue("Reference", 0, indexMap, values);
+        String referenceNumber = metadata.getOrNull(ShootMetadata.Column.REFERENCE);
         List<Path> newTifFiles = new ArrayList<>();
         int count = 1;
         log.info("read tif files");
@@ -227,7 +453,7 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
             count++;
         }
         log.info("create metadata file");
-        Fileformat ff = convertData(indexMap, values, newTifFiles, prefs);
+        Fileformat ff = convertData(metadata, newTifFiles, types);
 
         if (ff == null) {
             return false;
@@ -235,17 +461,20 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
 
         Process process = null;
 
-        boolean existsInGoobiNotDone = false;
-        List<Process> processes = ProcessManager.getProcesses("", "prozesse.titel='" + referenceNumber.replaceAll(" |\t", "_") + "'", null);
-        log.debug("found " + processes.size() + " processes with title " + referenceNumber.replaceAll(" |\t", "_"));
-        for (Process p : processes) {
-            if (!"100000000".equals(p.getSortHelperStatus())) {
-                existsInGoobiNotDone = true;
-                break;
-            }
+        boolean existsInGoobiNotDone;
+        try {
+            existsInGoobiNotDone = ProcessTitleIndex.getInstance().hasUnfinishedProcess(referenceNumber.replaceAll(" |\t", "_"), useTitleIndex);
+        } catch (SQLException e) {
+            throw new DAOException(e);
         }
 
         if (existsInGoobiNotDone) {
+            String csvChecksum = checksums.get(csvFile);
+            if (csvChecksum != null && wasCreatedFrom(referenceNumber.replaceAll(" |\t", "_"), csvChecksum)) {
+                // an earlier import of the same archive created the process, the shoot is complete
+                log.info("Editorial ingest: process {} was already created from this csv file, skip it", referenceNumber);
+                return true;
+            }
             // does exist in Goobi, but is not done => wait (return error)
             log.warn(String.format(
                     "Editorial ingest: A process with identifier %s already exists in a non-finished state. Will not create a new process.",
@@ -267,8 +496,13 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
         // set title
         process.setTitel(referenceNumber.replaceAll(" |\t", "_"));
 
-        NeuenProzessAnlegen(process, templateNew, ff, prefs);
+        NeuenProzessAnlegen(process, templateNew, ff, types);
         log.info("saved process " + process.getTitel());
+        ProcessTitleIndex.getInstance().processSaved(process);
+        if (!existsOnS3 && !ConfigurationHelper.getInstance().useCustomS3()) {
+            // the METS file is exported into the bucket before the reference can be imported again
+            EPReferenceIndex.getInstance().add(referenceNumber);
+        }
         saveProperty(process, "b-number", referenceNumber);
         saveProperty(process, "CollectionName1", "Editorial Photography");
         saveProperty(process, "CollectionName2", referenceNumber);
@@ -276,12 +510,12 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
         saveProperty(process, "schemaName", "Millennium");
         saveProperty(process, "archiveStatus", referenceNumber.startsWith("CP") ? "archived" : "contemporary");
 
-        saveProperty(process, "Keywords", getValue("People", indexMap, values) + ", " + getValue("Keywords", indexMap, values));
+        saveProperty(process, "Keywords", metadata.get(ShootMetadata.Column.PEOPLE) + ", " + metadata.get(ShootMetadata.Column.KEYWORDS));
         String creators = "";
-        String staff = getValue("Staff Photog", indexMap, values);
-        String freelance = getValue("Freelance Photog", indexMap, values);
+        String staff = metadata.get(ShootMetadata.Column.STAFF_PHOTOGRAPHER);
+        String freelance = metadata.get(ShootMetadata.Column.FREELANCE_PHOTOGRAPHER);
         if (StringUtils.isBlank(freelance)) {
-            freelance = getValue("Freelancer", indexMap, values);
+            freelance = metadata.get(ShootMetadata.Column.FREELANCER);
         }
         if (staff != null && !staff.isEmpty()) {
             creators = staff;
@@ -301,105 +535,74 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
                 importDir.resolve(csvFile.getFileName()).toString(), Files.size(csvFile)));
         StorageProvider.getInstance().copyFile(csvFile, importDir.resolve(csvFile.getFileName()));
 
+        Map<String, String> importedChecksums = new HashMap<>();
+        if (checksums.containsKey(csvFile)) {
+            importedChecksums.put(csvFile.getFileName().toString(), checksums.get(csvFile));
+        }
+
         Path imagesDir = Paths.get(process.getImagesOrigDirectory(false));
+        if (!ConfigurationHelper.getInstance().useS3()) {
+            Files.createDirectories(imagesDir);
+        }
+        // the extracted files are not needed anymore, move them into the process instead of copying them
+        Map<Path, Path> placements = new LinkedHashMap<>();
         count = 0;
         for (Path tifFile : tifFiles) {
             String newFileName = newTifFiles.get(count).getFileName().toString();
-            log.trace(String.format("Copying %s to %s (size: %d)", tifFile.toAbsolutePath().toString(), imagesDir.resolve(newFileName).toString(),
-                    Files.size(tifFile)));
-            StorageProvider.getInstance().copyFile(tifFile, imagesDir.resolve(newFileName));
+            placements.put(tifFile, imagesDir.resolve(newFileName));
+            if (checksums.containsKey(tifFile)) {
+                importedChecksums.put(newFileName, checksums.get(tifFile));
+            }
             count++;
         }
+        FilePlacement.moveAll(placements);
+        try {
+            FileChecksums.writeManifest(importDir, importedChecksums);
+        } catch (IOException e) {
+            log.error("Unable to store checksums", e);
+        }
         log.info("copied data to process");
+        if (checksums.containsKey(csvFile)) {
+            // mark the shoot as complete, a new import of the same archive skips it
+            saveProperty(process, SOURCE_CSV_PROPERTY, checksums.get(csvFile));
+        }
         // start work for process
         List<Step> steps = StepManager.getStepsForProcess(process.getId());
         for (Step s : steps) {
             if (StepStatus.OPEN.equals(s.getBearbeitungsstatusEnum()) && s.isTypAutomatisch()) {
-                ScriptThreadWithoutHibernate myThread = new ScriptThreadWithoutHibernate(s);
-                myThread.start();
+                // bounded, a backfill must not start hundreds of scripts at once. Steps started later by closing this step are not limited
+                StepScheduler.getInstance().submitStep(s);
             }
         }
         return true;
     }
 
-    private void readFile(Path csvFile, Map<String, Integer> indexMap, List<String[]> values) throws FileNotFoundException, IOException {
-        boolean firstLine = true;
+    /**
+     * Check if an unfinished process with the title was created from a csv file with the given checksum
+     */
 
-        try (Reader r = new FileReader(csvFile.toFile())) {
-            Iterable<CSVRecord> records = CSVFormat.RFC4180.parse(r);
-            for (CSVRecord record : records) {
-                if (firstLine) {
-                    readIndex(record, indexMap, values);
-                    firstLine = false;
-                } else {
-                    readLine(record, indexMap, values);
+    private static boolean wasCreatedFrom(String title, String csvChecksum) throws DAOException {
+        List<Integer> processIds;
+        try {
+            processIds = ProcessTitleIndex.getInstance().getUnfinishedProcessIds(title);
+        } catch (SQLException e) {
+            throw new DAOException(e);
+        }
+        for (Integer processId : processIds) {
+            for (GoobiProperty property : PropertyManager.getPropertiesForObject(processId, PropertyOwnerType.PROCESS)) {
+                if (SOURCE_CSV_PROPERTY.equals(property.getPropertyName()) && csvChecksum.equals(property.getPropertyValue())) {
+                    return true;
                 }
             }
         }
+        return false;
     }
 
-    private void readIndex(CSVRecord record, Map<String, Integer> indexMap, List<String[]> values) {
-        int idx = 0;
-        for (String element : record) {
-            indexMap.put(element, idx);
-            idx++;
-        }
-    }
-
-    private void readLine(CSVRecord record, Map<String, Integer> indexMap, List<String[]> values) {
-        int idx = 0;
-        String[] lineValues = new String[indexMap.size()];
-        for (String element : record) {
-            lineValues[idx] = element;
-            idx++;
-        }
-        values.add(lineValues);
-    }
-
-    private String getValue(String name, int row, Map<String, Integer> indexMap, List<String[]> values) {
-        Integer index = indexMap.get(name);
-        if (index == null) {
-            return null;
-        }
-        return values.get(row)[index];
-    }
-
-    private String getValue(String name, Map<String, Integer> indexMap, List<String[]> values) {
-        String value = this.getValue(name, 0, indexMap, values);
-        if (value == null) {
-            return "";
-        }
-        return value;
-    }
-
-    private boolean checkIfExistsOnS3(final String _reference) {
+    private boolean checkIfExistsOnS3(final String _reference) throws IOException {
         if (ConfigurationHelper.getInstance().useCustomS3()) {
             return false;
         }
-        String bucket;
-        try {
-            XMLConfiguration config = new XMLConfiguration("/opt/digiverso/goobi/config/plugin_wellcome_editorial_process_creation.xml");
-            bucket = config.getString("bucket", "wellcomecollection-editorial-photography");// "wellcomecollection-editorial-photography";
-            log.debug("using bucket " + bucket);
-        } catch (ConfigurationException e) {
-            bucket = "wellcomecollection-editorial-photography";
-            log.debug("using bucket " + bucket);
-        }
-        String reference = _reference.replaceAll(" |\t", "_");
-        int refLen = reference.length();
-        String keyPrefix = reference.substring(refLen - 2, refLen) + "/" + reference + "/";
-        String key = keyPrefix + reference + ".xml";
-        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
-
-        ListObjectsV2Request.Builder requestBuilder = ListObjectsV2Request.builder()
-                .bucket(bucket)
-                .delimiter("/")
-                .prefix(key);
-
-        CompletableFuture<ListObjectsV2Response> response = utils.getS3().listObjectsV2(requestBuilder.build());
-        ListObjectsV2Response resp = response.toCompletableFuture().join();
-
-        return !resp.contents().isEmpty();
+        return EPReferenceIndex.getInstance().exists(_reference);
     }
 
     private Process cloneTemplate(Process template) {
@@ -419,14 +622,14 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
     }
 
     private void saveProperty(Process process, String name, String value) {
-        Processproperty pe = new Processproperty();
-        pe.setTitel(name);
-        pe.setWert(value);
-        pe.setProzess(process);
-        PropertyManager.saveProcessProperty(pe);
+        GoobiProperty pe = new GoobiProperty(PropertyOwnerType.PROCESS);
+        pe.setPropertyName(name);
+        pe.setPropertyValue(value);
+        pe.setOwner(process);
+        PropertyManager.saveProperty(pe);
     }
 
-    private void NeuenProzessAnlegen(Process process, Process template, Fileformat ff, Prefs prefs)
+    private void NeuenProzessAnlegen(Process process, Process template, Fileformat ff, TemplateCache.RulesetTypes types)
             throws DAOException, PreferencesException, IOException, InterruptedException, SwapException, WriteException, ReadException {
 
         for (Step step : process.getSchritteList()) {
@@ -455,7 +658,7 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
          * zunächst löschen) --------------------------------
          */
         try {
-            MetadataType mdt = prefs.getMetadataTypeByName("pathimagefiles");
+            MetadataType mdt = types.getMetadataType("pathimagefiles");
             List<? extends Metadata> alleImagepfade = ff.getDigitalDocument().getPhysicalDocStruct().getAllMetadataByType(mdt);
             if (alleImagepfade != null && !alleImagepfade.isEmpty()) {
                 for (Metadata md : alleImagepfade) {
@@ -471,77 +674,79 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
             ff.getDigitalDocument().getPhysicalDocStruct().addMetadata(newmd);
 
             /* Rdf-File schreiben */
+            long start = System.nanoTime();
             process.writeMetadataFile(ff);
+            // written once and not read again, the duration shows the effect on real shoots
+            TicketMetrics.getInstance().observe("ep_mets_write_seconds", TicketMetrics.DURATION_BUCKETS,
+                    MetricsTransferListener.seconds(System.nanoTime() - start));
 
         } catch (ugh.exceptions.DocStructHasNoTypeException | MetadataTypeNotAllowedException e) {
             log.error(e);
         }
 
-        // Adding process to history
-        HistoryAnalyserJob.updateHistoryForProzess(process);
-
-        ProcessManager.saveProcess(process);
-
-        process.readMetadataFile();
+        // Adding process to history, this is done in the background after the ticket is finished
+        HistoryUpdateQueue.getInstance().enqueue(process.getId());
 
+        // the steps are already stored, only the process needs to be updated. The METS file is not read again, the Fileformat is complete
+        ProcessManager.saveProcessInformation(process);
     }
 
-    private Fileformat convertData(Map<String, Integer> indexMap, List<String[]> values, List<Path> tifFiles, Prefs prefs) {
+    private Fileformat convertData(ShootMetadata metadata, List<Path> tifFiles, TemplateCache.RulesetTypes types) {
         Fileformat ff = null;
         try {
 
-            ff = new MetsMods(prefs);
+            ff = new MetsMods(types.getPrefs());
             DigitalDocument dd = new DigitalDocument();
             ff.setDigitalDocument(dd);
 
             // Determine the root docstruct type
             String dsType = "EditorialPhotography";
 
-            DocStruct dsRoot = dd.createDocStruct(prefs.getDocStrctTypeByName(dsType));
+            DocStruct dsRoot = dd.createDocStruct(types.getDocStructType(dsType));
 
-            Metadata md = new Metadata(prefs.getMetadataTypeByName("TitleDocMain"));
-            String title = getValue("Title", indexMap, values);
+            Metadata md = new Metadata(types.getMetadataType("TitleDocMain"));
+            String title = metadata.get(ShootMetadata.Column.TITLE);
             if (title.isEmpty()) {
                 return null;
             }
             md.setValue(title);
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("ShootType"));
-            String shootType = getValue("Shoot Type", indexMap, values);
+            md = new Metadata(types.getMetadataType("ShootType"));
+            String shootType = metadata.get(ShootMetadata.Column.SHOOT_TYPE);
             if (shootType.isEmpty()) {
                 return null;
             }
             md.setValue(shootType);
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("CatalogIDDigital"));
-            String reference = getValue("Reference", indexMap, values).replaceAll(" |\t", "_");
+            md = new Metadata(types.getMetadataType("CatalogIDDigital"));
+            String reference = metadata.get(ShootMetadata.Column.REFERENCE).replaceAll(" |\t", "_");
             if (reference.isEmpty()) {
                 return null;
             }
             md.setValue(reference);
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("PlaceOfPublication"));
-            md.setValue(getValue("Location", indexMap, values));
+            md = new Metadata(types.getMetadataType("PlaceOfPublication"));
+            md.setValue(metadata.get(ShootMetadata.Column.LOCATION));
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("Contains"));
-            md.setValue(getValue("Caption", indexMap, values));
+            md = new Metadata(types.getMetadataType("Contains"));
+            md.setValue(metadata.get(ShootMetadata.Column.CAPTION));
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("People"));
-            md.setValue(getValue("People", indexMap, values));
+            md = new Metadata(types.getMetadataType("People"));
+            md.setValue(metadata.get(ShootMetadata.Column.PEOPLE));
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("Description"));
-            md.setValue(getValue("Keywords", indexMap, values));
+            md = new Metadata(types.getMetadataType("Description"));
+            md.setValue(metadata.get(ShootMetadata.Column.KEYWORDS));
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("Usage"));
-            md.setValue(getValue("Intended Usage", indexMap, values));
+            md = new Metadata(types.getMetadataType("Usage"));
+            md.setValue(metadata.get(ShootMetadata.Column.INTENDED_USAGE));
             dsRoot.addMetadata(md);
-            md = new Metadata(prefs.getMetadataTypeByName("AccessLicense"));
-            md.setValue(getValue("Usage Terms", indexMap, values));
+            md = new Metadata(types.getMetadataType("AccessLicense"));
+            md.setValue(metadata.get(ShootMetadata.Column.USAGE_TERMS));
             dsRoot.addMetadata(md);
 
-            String name = getValue("Staff Photog", indexMap, values);
+            String name = metadata.get(ShootMetadata.Column.STAFF_PHOTOGRAPHER);
             if (!StringUtils.isBlank(name)) {
-                Person p = new Person(prefs.getMetadataTypeByName("Photographer"));
+                Person p = new Person(types.getMetadataType("Photographer"));
                 int lastSpace = name.lastIndexOf(' ');
                 String firstName = name.substring(0, lastSpace);
                 String lastName = name.substring(lastSpace + 1, name.length());
@@ -550,12 +755,12 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
                 dsRoot.addPerson(p);
             }
 
-            name = getValue("Freelance Photog", indexMap, values);
+            name = metadata.get(ShootMetadata.Column.FREELANCE_PHOTOGRAPHER);
             if (StringUtils.isNotBlank(name)) {
-                name = getValue("Freelancer", indexMap, values);
+                name = metadata.get(ShootMetadata.Column.FREELANCER);
             }
             if (!StringUtils.isBlank(name)) {
-                Person p = new Person(prefs.getMetadataTypeByName("Creator"));
+                Person p = new Person(types.getMetadataType("Creator"));
                 int lastSpace = name.lastIndexOf(' ');
                 String firstName = name.substring(0, lastSpace);
                 String lastName = name.substring(lastSpace + 1, name.length());
@@ -566,22 +771,23 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
 
             dd.setLogicalDocStruct(dsRoot);
 
-            DocStruct dsBoundBook = dd.createDocStruct(prefs.getDocStrctTypeByName("BoundBook"));
+            DocStruct dsBoundBook = dd.createDocStruct(types.getDocStructType("BoundBook"));
             // TODO add files to dsBoundBook (correctly)
+            DocStructType pageType = types.getDocStructType("page");
+            MetadataType physicalPageNumberType = types.getMetadataType("physPageNumber");
+            MetadataType logicalPageNumberType = types.getMetadataType("logicalPageNumber");
             int pageNo = 0;
             for (Path tifPath : tifFiles) {
-                DocStruct page = dd.createDocStruct(prefs.getDocStrctTypeByName("page"));
+                DocStruct page = dd.createDocStruct(pageType);
                 try {
                     // physical page no
                     dsBoundBook.addChild(page);
-                    MetadataType mdt = prefs.getMetadataTypeByName("physPageNumber");
-                    Metadata mdTemp = new Metadata(mdt);
+                    Metadata mdTemp = new Metadata(physicalPageNumberType);
                     mdTemp.setValue(String.valueOf(pageNo));
                     page.addMetadata(mdTemp);
 
                     // logical page no
-                    mdt = prefs.getMetadataTypeByName("logicalPageNumber");
-                    mdTemp = new Metadata(mdt);
+                    mdTemp = new Metadata(logicalPageNumberType);
 
                     mdTemp.setValue("uncounted");
 
@@ -611,4 +817,27 @@ public class ImportEPHandler implements TicketHandler<PluginReturnValue> {
         return ff;
     }
 
+    /**
+     * A csv file and the images described by it
+     */
+
+    private static class Shoot {
+
+        private final Path csvFile;
+
+        private final List<Path> images;
+
+        private Shoot(Path csvFile, List<Path> images) {
+            this.csvFile = csvFile;
+            this.images = images;
+        }
+
+        public Path getCsvFile() {
+            return csvFile;
+        }
+
+        public List<Path> getImages() {
+            return images;
+        }
+    }
 }
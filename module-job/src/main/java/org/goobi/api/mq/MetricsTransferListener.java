@@ -0,0 +1,65 @@
+package org.goobi.api.mq;
+
+import software.amazon.awssdk.transfer.s3.progress.TransferListener;
+
+/**
+ * Transfer listener that records throughput, time to first byte, duration, object size and failures of a transfer in {@link TicketMetrics}.
+ *
+ * A new listener is needed for each transfer.
+ *
+ */
+
+public class MetricsTransferListener implements TransferListener {
+
+    private final String bucket;
+
+    private long startTime;
+
+    private long firstByteTime;
+
+    private MetricsTransferListener(String bucket) {
+        this.bucket = bucket;
+    }
+
+    public static MetricsTransferListener create(String bucket) {
+        return new MetricsTransferListener(bucket);
+    }
+
+    @Override
+    public void transferInitiated(Context.TransferInitiated context) {
+        startTime = System.nanoTime();
+    }
+
+    @Override
+    public void bytesTransferred(Context.BytesTransferred context) {
+        if (firstByteTime == 0 && context.progressSnapshot().transferredBytes() > 0) {
+            firstByteTime = System.nanoTime();
+            TicketMetrics.getInstance()
+                    .observe("s3_transfer_time_to_first_byte_seconds", TicketMetrics.DURATION_BUCKETS, seconds(firstByteTime - startTime), "bucket",
+                            bucket);
+        }
+    }
+
+    @Override
+    public void transferComplete(Context.TransferComplete context) {
+        double duration = seconds(System.nanoTime() - startTime);
+        long bytes = context.progressSnapshot().transferredBytes();
+        TicketMetrics metrics = TicketMetrics.getInstance();
+        metrics.increment("s3_transfers_total", 1, "bucket", bucket);
+        metrics.increment("s3_transfer_bytes_total", bytes, "bucket", bucket);
+        metrics.observe("s3_transfer_duration_seconds", TicketMetrics.DURATION_BUCKETS, duration, "bucket", bucket);
+        metrics.observe("s3_transfer_object_size_bytes", TicketMetrics.SIZE_BUCKETS, bytes, "bucket", bucket);
+        if (duration > 0) {
+            metrics.observe("s3_transfer_throughput_bytes_per_second", TicketMetrics.THROUGHPUT_BUCKETS, bytes / duration, "bucket", bucket);
+        }
+    }
+
+    @Override
+    public void transferFailed(Context.TransferFailed context) {
+        TicketMetrics.getInstance().increment("s3_transfer_failures_total", 1, "bucket", bucket);
+    }
+
+    static double seconds(long nanos) {
+        return nanos / 1_000_000_000d;
+    }
+}
@@ -0,0 +1,200 @@
+package org.goobi.api.mq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+
+import de.sub.goobi.helper.enums.StepStatus;
+import de.sub.goobi.persistence.managers.MySQLHelper;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Provides the active steps of a process without loading the process.
+ *
+ * Only id, title and status of the open, in work and error steps are read. The result is kept for a few seconds, so a burst of tickets for the
+ * same process needs a single query. Expired entries are removed when new entries are added. A handler that closes a step must call
+ * {@link #invalidate(int)}.
+ *
+ */
+
+@Log4j2
+public class ProcessStateCache {
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(10);
+
+    private static final String QUERY = "SELECT SchritteID, Titel, Bearbeitungsstatus FROM schritte WHERE ProzesseID = ? "
+            + "AND Bearbeitungsstatus IN (?, ?, ?) ORDER BY Reihenfolge, SchritteID";
+
+    private static ProcessStateCache instance;
+
+    private final Map<Integer, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastCleanup = new AtomicLong(System.nanoTime());
+
+    private ProcessStateCache() {
+    }
+
+    public static synchronized ProcessStateCache getInstance() {
+        if (instance == null) {
+            instance = new ProcessStateCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the current step of the process, this is the first step that is open, in work or has an error.
+     *
+     * @param processId id of the process
+     * @return the step or null, if no step is active
+     */
+
+    public StepState getCurrentStep(int processId) {
+        List<StepState> steps = getActiveSteps(processId);
+        return steps.isEmpty() ? null : steps.get(0);
+    }
+
+    /**
+     * Get the first step of the process that is open or in work.
+     *
+     * @param processId id of the process
+     * @return the step or null
+     */
+
+    public StepState getFirstOpenStep(int processId) {
+        for (StepState step : getActiveSteps(processId)) {
+            if (step.getStatus() == StepStatus.OPEN || step.getStatus() == StepStatus.INWORK) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget the cached steps of a process, must be called after a step was closed
+     */
+
+    public void invalidate(int processId) {
+        entries.remove(processId);
+    }
+
+    private List<StepState> getActiveSteps(int processId) {
+        CacheEntry entry = entries.get(processId);
+        if (entry != null && entry.expiry - System.nanoTime() > 0) {
+            return entry.steps;
+        }
+        List<StepState> steps = loadActiveSteps(processId);
+        long now = System.nanoTime();
+        entries.put(processId, new CacheEntry(steps, now + TTL));
+        removeExpiredEntries(now);
+        return steps;
+    }
+
+    /**
+     * Remove the entries of processes that were not requested again, at most once per TTL
+     */
+
+    private void removeExpiredEntries(long now) {
+        long last = lastCleanup.get();
+        if (now - last >= TTL && lastCleanup.compareAndSet(last, now)) {
+            entries.values().removeIf(entry -> entry.expiry - now <= 0);
+        }
+    }
+
+    private static List<StepState> loadActiveSteps(int processId) {
+        ResultSetHandler<List<StepState>> handler = rs -> {
+            List<StepState> steps = new ArrayList<>();
+            while (rs.next()) {
+                StepStatus status = StepStatus.getStatusFromValue(rs.getInt("Bearbeitungsstatus"));
+                steps.add(new StepState(rs.getInt("SchritteID"), rs.getString("Titel"), status));
+            }
+            return steps;
+        };
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            List<StepState> steps = new QueryRunner().query(connection, QUERY, handler, processId, StepStatus.OPEN.getValue(),
+                    StepStatus.INWORK.getValue(), StepStatus.ERROR.getValue());
+            return Collections.unmodifiableList(steps);
+        } catch (SQLException e) {
+            log.error("Unable to read the steps of process {}, load the process instead", processId, e);
+            return loadFromProcess(processId);
+        } finally {
+            if (connection != null) {
+                try {
+                    MySQLHelper.closeConnection(connection);
+                } catch (SQLException e) {
+                    log.error(e);
+                }
+            }
+        }
+    }
+
+    private static List<StepState> loadFromProcess(int processId) {
+        List<StepState> steps = new ArrayList<>();
+        Process process = ProcessManager.getProcessById(processId);
+        if (process != null) {
+            for (Step step : process.getSchritte()) {
+                StepStatus status = step.getBearbeitungsstatusEnum();
+                if (status == StepStatus.OPEN || status == StepStatus.INWORK || status == StepStatus.ERROR) {
+                    steps.add(new StepState(step.getId(), step.getTitel(), status));
+                }
+            }
+        }
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * Id, title and status of a step
+     */
+
+    public static class StepState {
+
+        private final int id;
+
+        private final String title;
+
+        private final StepStatus status;
+
+        public StepState(int id, String title, StepStatus status) {
+            this.id = id;
+            this.title = title;
+            this.status = status;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public StepStatus getStatus() {
+            return status;
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final List<StepState> steps;
+
+        private final long expiry;
+
+        private CacheEntry(List<StepState> steps, long expiry) {
+            this.steps = steps;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.goobi.api.mq;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.goobi.beans.Process;
+
+import de.sub.goobi.persistence.managers.MySQLHelper;
+
+/**
+ * Finds out if an unfinished process with a given title exists.
+ *
+ * Only the status column of the processes with this title is read. Optionally the status is kept in memory for a short time. The entries are
+ * updated when a handler saves a process and removed when a handler closes a step, so only changes made outside of the ticket handlers are
+ * noticed late.
+ *
+ */
+
+public class ProcessTitleIndex {
+
+    // sort helper status of a process with all steps done
+    public static final String STATUS_DONE = "100000000";
+
+    private static final long TTL = TimeUnit.SECONDS.toNanos(60);
+
+    private static final String QUERY = "SELECT sortHelperStatus FROM prozesse WHERE Titel = ?";
+
+    private static final String ID_QUERY = "SELECT ProzesseID, sortHelperStatus FROM prozesse WHERE Titel = ?";
+
+    private static ProcessTitleIndex instance;
+
+    // title -> status of all processes with this title
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    private ProcessTitleIndex() {
+    }
+
+    public static synchronized ProcessTitleIndex getInstance() {
+        if (instance == null) {
+            instance = new ProcessTitleIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Check if a process with the title exists and has open steps.
+     *
+     * @param title title of the process
+     * @param useIndex true to use the status kept in memory
+     * @return true if an unfinished process exists
+     * @throws SQLException
+     */
+
+    public boolean hasUnfinishedProcess(String title, boolean useIndex) throws SQLException {
+        List<String> status = null;
+        if (useIndex) {
+            CacheEntry entry = entries.get(title);
+            if (entry != null && entry.expiry - System.nanoTime() > 0) {
+                status = entry.status;
+            }
+        }
+        if (status == null) {
+            status = loadStatus(title);
+            if (useIndex) {
+                entries.put(title, new CacheEntry(status, System.nanoTime() + TTL));
+            }
+        }
+        for (String value : status) {
+            if (!STATUS_DONE.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the ids of the unfinished processes with the title, they are always read from the database
+     *
+     * @param title title of the process
+     * @return ids of the processes with open steps
+     * @throws SQLException
+     */
+
+    public List<Integer> getUnfinishedProcessIds(String title) throws SQLException {
+        ResultSetHandler<List<Integer>> handler = rs -> {
+            List<Integer> ids = new ArrayList<>();
+            while (rs.next()) {
+                if (!STATUS_DONE.equals(rs.getString("sortHelperStatus"))) {
+                    ids.add(rs.getInt("ProzesseID"));
+                }
+            }
+            return ids;
+        };
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            return new QueryRunner().query(connection, ID_QUERY, handler, title);
+        } finally {
+            if (connection != null) {
+                MySQLHelper.closeConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Update the index after a new process was saved
+     */
+
+    public void processSaved(Process process) {
+        CacheEntry entry = entries.get(process.getTitel());
+        if (entry != null) {
+            List<String> status = new ArrayList<>(entry.status);
+            // a new process, the other processes with this title keep their status
+            status.add(process.getSortHelperStatus());
+            entries.put(process.getTitel(), new CacheEntry(status, entry.expiry));
+        }
+    }
+
+    /**
+     * Remove a title from the index, must be called after a step of the process was closed
+     */
+
+    public void invalidate(String title) {
+        entries.remove(title);
+    }
+
+    private static List<String> loadStatus(String title) throws SQLException {
+        ResultSetHandler<List<String>> handler = rs -> {
+            List<String> status = new ArrayList<>();
+            while (rs.next()) {
+                status.add(rs.getString("sortHelperStatus"));
+            }
+            return status;
+        };
+        Connection connection = null;
+        try {
+            connection = MySQLHelper.getInstance().getConnection();
+            return new QueryRunner().query(connection, QUERY, handler, title);
+        } finally {
+            if (connection != null) {
+                MySQLHelper.closeConnection(connection);
+            }
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final List<String> status;
+
+        private final long expiry;
+
+        private CacheEntry(List<String> status, long expiry) {
+            this.status = status;
+            this.expiry = expiry;
+        }
+    }
+}
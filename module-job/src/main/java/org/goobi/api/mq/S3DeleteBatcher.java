@@ -0,0 +1,199 @@
+package org.goobi.api.mq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.sub.goobi.helper.S3FileUtils;
+import de.sub.goobi.helper.StorageProvider;
+import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+/**
+ * Collects s3 objects to delete and removes them with as few requests as possible.
+ *
+ * The keys are grouped by bucket. A bucket is flushed as soon as it contains 1000 keys, the maximum of a single DeleteObjects request, or after a
+ * short time window. Keys that could not be deleted are queued again, until the maximum number of attempts is reached. The keys are only kept in
+ * memory and can be lost when the application stops.
+ *
+ */
+
+@Log4j2
+public class S3DeleteBatcher {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final long FLUSH_INTERVAL_MS = 2000;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static S3DeleteBatcher instance;
+
+    // bucket name -> keys to delete
+    private final Map<String, List<PendingKey>> pendingKeys = new HashMap<>();
+
+    private final Set<CompletableFuture<DeleteObjectsResponse>> runningRequests = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService scheduler;
+
+    private S3DeleteBatcher() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "s3-delete-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized S3DeleteBatcher getInstance() {
+        if (instance == null) {
+            instance = new S3DeleteBatcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Stop the flush thread and send the collected keys, if the batcher was used. This is called when the web application is stopped, while the s3
+     * client is still open.
+     */
+
+    static void shutdown() {
+        S3DeleteBatcher batcher;
+        synchronized (S3DeleteBatcher.class) {
+            batcher = instance;
+        }
+        if (batcher != null) {
+            batcher.scheduler.shutdownNow();
+            batcher.flushAndWait();
+        }
+    }
+
+    /**
+     * Mark an object for deletion. The object is deleted with the next batch of its bucket.
+     *
+     * @param bucket name of the bucket
+     * @param key key of the object
+     */
+
+    public void delete(String bucket, String key) {
+        add(bucket, new PendingKey(key, 1));
+    }
+
+    /**
+     * Send all collected keys.
+     */
+
+    public synchronized void flush() {
+        for (String bucket : new ArrayList<>(pendingKeys.keySet())) {
+            flush(bucket);
+        }
+    }
+
+    /**
+     * Send all collected keys and wait until all requests are finished. Failed keys are retried within this call.
+     */
+
+    public void flushAndWait() {
+        while (true) {
+            flush();
+            List<CompletableFuture<DeleteObjectsResponse>> requests = new ArrayList<>(runningRequests);
+            if (requests.isEmpty()) {
+                synchronized (this) {
+                    if (pendingKeys.isEmpty()) {
+                        return;
+                    }
+                }
+            }
+            // failures are handled in the completion handler
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).exceptionally(t -> null).join();
+        }
+    }
+
+    private synchronized void add(String bucket, PendingKey pendingKey) {
+        List<PendingKey> keys = pendingKeys.computeIfAbsent(bucket, b -> new ArrayList<>());
+        keys.add(pendingKey);
+        if (keys.size() >= MAX_BATCH_SIZE) {
+            flush(bucket);
+        }
+    }
+
+    private synchronized void flush(String bucket) {
+        List<PendingKey> keys = pendingKeys.remove(bucket);
+        if (keys == null || keys.isEmpty()) {
+            return;
+        }
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+            send(bucket, keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size())));
+        }
+    }
+
+    private void send(String bucket, List<PendingKey> keys) {
+        Map<String, PendingKey> batch = new HashMap<>();
+        List<ObjectIdentifier> toDelete = new ArrayList<>();
+        for (PendingKey pendingKey : keys) {
+            batch.put(pendingKey.key, pendingKey);
+            toDelete.add(ObjectIdentifier.builder()
+                    .key(pendingKey.key)
+                    .build());
+        }
+
+        DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
+                .bucket(bucket)
+                .delete(Delete.builder()
+                        .objects(toDelete)
+                        .quiet(true)
+                        .build())
+                .build();
+
+        log.debug("delete {} objects from bucket {}", toDelete.size(), bucket);
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        CompletableFuture<DeleteObjectsResponse> request = utils.getS3().deleteObjects(dor);
+        runningRequests.add(request);
+        request.whenComplete((response, throwable) -> {
+            if (throwable != null) {
+                log.warn("Unable to delete {} objects from bucket {}", batch.size(), bucket, throwable);
+                for (PendingKey pendingKey : batch.values()) {
+                    retry(bucket, pendingKey);
+                }
+            } else if (response.hasErrors()) {
+                for (S3Error error : response.errors()) {
+                    log.warn("Unable to delete {}/{}: {}", bucket, error.key(), error.message());
+                    PendingKey pendingKey = batch.get(error.key());
+                    if (pendingKey != null) {
+                        retry(bucket, pendingKey);
+                    }
+                }
+            }
+            runningRequests.remove(request);
+        });
+    }
+
+    private void retry(String bucket, PendingKey pendingKey) {
+        if (pendingKey.attempt >= MAX_ATTEMPTS) {
+            log.error("Giving up deleting {}/{} after {} attempts", bucket, pendingKey.key, pendingKey.attempt);
+            return;
+        }
+        add(bucket, new PendingKey(pendingKey.key, pendingKey.attempt + 1));
+    }
+
+    private static final class PendingKey {
+        private final String key;
+        private final int attempt;
+
+        private PendingKey(String key, int attempt) {
+            this.key = key;
+            this.attempt = attempt;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Local cache for downloaded s3 objects.
+ *
+ * The entries are identified by bucket, key and ETag, so a changed object is never taken from the cache. Zip archives are extracted and removed
+ * right after the download, they share the data with the cache through a hard link. All other files are copied, so writing to the target cannot
+ * change a cache entry and removing an entry frees its space. The least recently used entries are removed as soon as the cache exceeds its maximum
+ * size.
+ *
+ */
+
+@Log4j2
+public class S3DownloadCache {
+
+    private static final long MAX_CACHE_SIZE = 20L * 1024 * 1024 * 1024; // 20 GB
+
+    private static S3DownloadCache instance;
+
+    private final Path cacheFolder;
+
+    // file name -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long cacheSize;
+
+    private S3DownloadCache() {
+        cacheFolder = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "s3_download_cache");
+        loadEntries();
+        TicketMetrics.getInstance().registerGauge("s3_download_cache_size_bytes", this::getCacheSize);
+    }
+
+    public static synchronized S3DownloadCache getInstance() {
+        if (instance == null) {
+            instance = new S3DownloadCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Create the target file from the cache.
+     *
+     * @param bucket name of the bucket
+     * @param key key of the object
+     * @param eTag current ETag of the object
+     * @param target file to create
+     * @return true if the object was found in the cache
+     */
+
+    public boolean copyFromCache(String bucket, String key, String eTag, Path target) {
+        String name = getEntryName(bucket, key, eTag);
+        synchronized (this) {
+            if (entries.get(name) == null) {
+                TicketMetrics.getInstance().increment("s3_download_cache_misses_total", 1);
+                return false;
+            }
+        }
+        Path cachedFile = cacheFolder.resolve(name);
+        try {
+            Files.deleteIfExists(target);
+            if (isConsumedImmediately(target)) {
+                link(cachedFile, target);
+            } else {
+                Files.copy(cachedFile, target);
+            }
+            // the modification date is used to restore the access order after a restart
+            Files.setLastModifiedTime(cachedFile, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("Unable to use cached file {}", cachedFile, e);
+            removeEntry(name);
+            return false;
+        }
+        TicketMetrics.getInstance().increment("s3_download_cache_hits_total", 1);
+        return true;
+    }
+
+    /**
+     * Add a downloaded file to the cache. Zip archives are hard linked, if this is not possible they will not be cached. Other files are copied.
+     *
+     * @param bucket name of the bucket
+     * @param key key of the object
+     * @param eTag ETag of the downloaded object
+     * @param file the downloaded file
+     */
+
+    public void addToCache(String bucket, String key, String eTag, Path file) {
+        String name = getEntryName(bucket, key, eTag);
+        synchronized (this) {
+            if (entries.containsKey(name)) {
+                return;
+            }
+        }
+        // prepare the entry under a temporary name without holding the lock, copying a large file takes a while
+        Path tempFile = cacheFolder.resolve(name + "." + UUID.randomUUID() + ".tmp");
+        try {
+            Files.createDirectories(cacheFolder);
+            if (isConsumedImmediately(file)) {
+                Files.createLink(tempFile, file);
+            } else {
+                Files.copy(file, tempFile);
+            }
+            long size = Files.size(tempFile);
+            synchronized (this) {
+                if (entries.containsKey(name)) {
+                    // added by another ticket in the meantime
+                    Files.delete(tempFile);
+                    return;
+                }
+                Files.move(tempFile, cacheFolder.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                entries.put(name, size);
+                cacheSize += size;
+                evict();
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Unable to cache {}, {}", file, e.getMessage());
+            FileUtils.deleteQuietly(tempFile.toFile());
+        }
+    }
+
+    public synchronized long getCacheSize() {
+        return cacheSize;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (cacheSize > MAX_CACHE_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            try {
+                Files.deleteIfExists(cacheFolder.resolve(entry.getKey()));
+            } catch (IOException e) {
+                log.warn("Unable to remove {} from cache", entry.getKey(), e);
+            }
+            cacheSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private synchronized void removeEntry(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            cacheSize -= size;
+        }
+    }
+
+    private void loadEntries() {
+        if (!Files.isDirectory(cacheFolder)) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(cacheFolder)) {
+            stream.filter(Files::isRegularFile).filter(file -> !file.getFileName().toString().endsWith(".tmp")).forEach(files::add);
+            // oldest entries first
+            files.sort(Comparator.comparingLong(S3DownloadCache::getLastModified));
+            for (Path file : files) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                cacheSize += size;
+            }
+        } catch (IOException e) {
+            log.error("Unable to read download cache {}", cacheFolder, e);
+        }
+    }
+
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Zip archives are extracted and deleted right after the download, the target can share the data with the cache
+     */
+
+    private static boolean isConsumedImmediately(Path target) {
+        return target.getFileName().toString().endsWith(".zip");
+    }
+
+    private static void link(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            // different file system, fall back to a copy
+            Files.copy(source, target);
+        }
+    }
+
+    private static String getEntryName(String bucket, String key, String eTag) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest((bucket + "/" + key + "/" + eTag).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // every java runtime must support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Copies and moves objects inside of s3 without downloading them.
+ *
+ * Small objects are copied with a single request. Larger objects are copied with a multipart upload, at most eight parts are copied at the
+ * same time. A move checks the size and the ETag of the copy before the source is deleted, failed attempts are repeated a few times.
+ *
+ */
+
+@Log4j2
+public final class S3ObjectMover {
+
+    // objects up to this size are copied with a single request, larger objects are split into parts of this size
+    private static final long PART_SIZE = 64L * 1024 * 1024;
+
+    // parts of one object that are copied at the same time
+    private static final int MAX_PARTS_IN_FLIGHT = 8;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private S3ObjectMover() {
+    }
+
+    /**
+     * Copy an object, the source is not changed
+     *
+     * @param s3 the client to use
+     * @param srcBucket bucket of the source
+     * @param srcKey key of the source
+     * @param destBucket bucket of the copy
+     * @param destKey key of the copy
+     * @return completes when the copy is written
+     */
+
+    public static CompletableFuture<Void> copy(S3AsyncClient s3, String srcBucket, String srcKey, String destBucket, String destKey) {
+        return s3.headObject(r -> r.bucket(srcBucket).key(srcKey))
+                .thenCompose(head -> copy(s3, srcBucket, srcKey, destBucket, destKey, head))
+                .thenApply(eTag -> (Void) null);
+    }
+
+    /**
+     * Move an object. The source is deleted only after the copy exists with the expected size and ETag.
+     *
+     * @param s3 the client to use
+     * @param srcBucket bucket of the source
+     * @param srcKey key of the source
+     * @param destBucket bucket of the destination
+     * @param destKey key of the destination
+     * @throws IOException if the object could not be moved, the source is kept in this case
+     */
+
+    public static void move(S3AsyncClient s3, String srcBucket, String srcKey, String destBucket, String destKey) throws IOException {
+        long start = System.nanoTime();
+        TicketMetrics metrics = TicketMetrics.getInstance();
+        for (int attempt = 1;; attempt++) {
+            try {
+                HeadObjectResponse source = s3.headObject(r -> r.bucket(srcBucket).key(srcKey)).join();
+                String eTag = copy(s3, srcBucket, srcKey, destBucket, destKey, source).join();
+                HeadObjectResponse target = s3.headObject(r -> r.bucket(destBucket).key(destKey)).join();
+                if (target.contentLength().longValue() != source.contentLength().longValue() || !eTag.equals(target.eTag())) {
+                    throw new IOException("copy of " + srcBucket + "/" + srcKey + " in " + destBucket + "/" + destKey + " is incomplete");
+                }
+                s3.deleteObject(r -> r.bucket(srcBucket).key(srcKey)).join();
+                metrics.increment("s3_move_total", 1, "bucket", srcBucket);
+                metrics.observe("s3_move_duration_seconds", TicketMetrics.DURATION_BUCKETS,
+                        MetricsTransferListener.seconds(System.nanoTime() - start), "bucket", srcBucket);
+                log.debug("moved {}/{} to {}/{}", srcBucket, srcKey, destBucket, destKey);
+                return;
+            } catch (CompletionException | IOException e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (attempt == MAX_ATTEMPTS) {
+                    metrics.increment("s3_move_errors_total", 1, "bucket", srcBucket);
+                    throw new IOException("Unable to move " + srcBucket + "/" + srcKey + " to " + destBucket + "/" + destKey, cause);
+                }
+                log.warn("Attempt {} to move {}/{} failed, try again", attempt, srcBucket, srcKey, cause);
+                metrics.increment("s3_move_retries_total", 1, "bucket", srcBucket);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while moving " + srcBucket + "/" + srcKey, ie);
+                }
+            }
+        }
+    }
+
+    private static CompletableFuture<String> copy(S3AsyncClient s3, String srcBucket, String srcKey, String destBucket, String destKey,
+            HeadObjectResponse source) {
+        long objectSize = source.contentLength();
+        if (objectSize <= PART_SIZE) {
+            // the source must not change while it is copied
+            return s3.copyObject(b -> b.sourceBucket(srcBucket)
+                    .sourceKey(srcKey)
+                    .copySourceIfMatch(source.eTag())
+                    .destinationBucket(destBucket)
+                    .destinationKey(destKey))
+                    .thenApply(response -> response.copyObjectResult().eTag());
+        }
+        return copyMultipart(s3, srcBucket, srcKey, destBucket, destKey, source);
+    }
+
+    private static CompletableFuture<String> copyMultipart(S3AsyncClient s3, String srcBucket, String srcKey, String destBucket, String destKey,
+            HeadObjectResponse source) {
+        return s3.createMultipartUpload(b -> b.bucket(destBucket).key(destKey)).thenCompose(upload -> {
+            String uploadId = upload.uploadId();
+            PartCopy copy = new PartCopy(s3, srcBucket, srcKey, source, destBucket, destKey, uploadId);
+            // a few lanes copy the parts one after the other, so a large object does not occupy all connections of the shared client
+            List<CompletableFuture<Void>> lanes = new ArrayList<>();
+            for (int i = 0; i < Math.min(MAX_PARTS_IN_FLIGHT, copy.parts.length); i++) {
+                lanes.add(copy.copyNextPart());
+            }
+            return CompletableFuture.allOf(lanes.toArray(new CompletableFuture[0]))
+                    .thenCompose(v -> s3.completeMultipartUpload(b -> b
+                            .bucket(destBucket)
+                            .key(destKey)
+                            .uploadId(uploadId)
+                            .multipartUpload(CompletedMultipartUpload.builder()
+                                    .parts(copy.parts)
+                                    .build())))
+                    .whenComplete((response, throwable) -> {
+                        if (throwable != null) {
+                            copy.failed.set(true);
+                            log.error("Unable to copy {} to {}, abort multipart upload", srcKey, destKey, throwable);
+                            s3.abortMultipartUpload(b -> b.bucket(destBucket).key(destKey).uploadId(uploadId));
+                        }
+                    })
+                    .thenApply(response -> response.eTag());
+        });
+    }
+
+    /**
+     * State of a multipart copy, shared by the lanes
+     */
+
+    private static class PartCopy {
+
+        private final S3AsyncClient s3;
+
+        private final String srcBucket;
+
+        private final String srcKey;
+
+        private final HeadObjectResponse source;
+
+        private final String destBucket;
+
+        private final String destKey;
+
+        private final String uploadId;
+
+        private final CompletedPart[] parts;
+
+        private final AtomicInteger nextPart = new AtomicInteger();
+
+        // stops the other lanes after a part failed
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        private PartCopy(S3AsyncClient s3, String srcBucket, String srcKey, HeadObjectResponse source, String destBucket, String destKey,
+                String uploadId) {
+            this.s3 = s3;
+            this.srcBucket = srcBucket;
+            this.srcKey = srcKey;
+            this.source = source;
+            this.destBucket = destBucket;
+            this.destKey = destKey;
+            this.uploadId = uploadId;
+            this.parts = new CompletedPart[(int) ((source.contentLength() + PART_SIZE - 1) / PART_SIZE)];
+        }
+
+        /**
+         * Copy the next part that is not taken by another lane, then continue with the following one
+         */
+
+        private CompletableFuture<Void> copyNextPart() {
+            int index = nextPart.getAndIncrement();
+            if (index >= parts.length || failed.get()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            long offset = index * PART_SIZE;
+            long end = Math.min(offset + PART_SIZE, source.contentLength()) - 1;
+            long partLength = end - offset + 1;
+            int pn = index + 1;
+            long partStart = System.nanoTime();
+            return s3.uploadPartCopy(b -> b
+                    .sourceBucket(srcBucket)
+                    .sourceKey(srcKey)
+                    .copySourceIfMatch(source.eTag())
+                    .destinationBucket(destBucket)
+                    .destinationKey(destKey)
+                    .uploadId(uploadId)
+                    .partNumber(pn)
+                    .copySourceRange("bytes=" + offset + "-" + end))
+                    .thenCompose(response -> {
+                        double duration = MetricsTransferListener.seconds(System.nanoTime() - partStart);
+                        log.trace("copied part {} of {} in {} s", pn, srcKey, duration);
+                        TicketMetrics metrics = TicketMetrics.getInstance();
+                        metrics.observe("s3_copy_part_duration_seconds", TicketMetrics.DURATION_BUCKETS, duration, "bucket", srcBucket);
+                        metrics.observe("s3_copy_part_throughput_bytes_per_second", TicketMetrics.THROUGHPUT_BUCKETS, partLength / duration,
+                                "bucket", srcBucket);
+                        parts[index] = CompletedPart.builder().partNumber(pn).eTag(response.copyPartResult().eTag()).build();
+                        return copyNextPart();
+                    })
+                    .whenComplete((v, throwable) -> {
+                        if (throwable != null) {
+                            failed.set(true);
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.goobi.api.mq;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Downloads an s3 object with several parallel range requests.
+ *
+ * The completed parts are recorded in a checkpoint file next to the target file. If a download gets interrupted, the next attempt only fetches the
+ * missing parts, as long as the object was not changed in the meantime. The checkpoint file is removed after the download is complete.
+ *
+ */
+
+@Log4j2
+public class S3RangeDownloader {
+
+    public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024; // 64 MB
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final S3AsyncClient s3;
+    private final long partSize;
+    private final int concurrency;
+
+    public S3RangeDownloader(S3AsyncClient s3, long partSize, int concurrency) {
+        this.s3 = s3;
+        this.partSize = partSize > 0 ? partSize : DEFAULT_PART_SIZE;
+        this.concurrency = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+    }
+
+    /**
+     * Download the object into the target file, using metadata the caller already requested. An existing checkpoint for the target is used to
+     * continue a previous download.
+     *
+     * @param bucket name of the bucket
+     * @param key key of the object
+     * @param target local file
+     * @param head metadata of the object
+     * @throws IOException if a part could not be downloaded or written
+     */
+
+    public void download(String bucket, String key, Path target, HeadObjectResponse head) throws IOException {
+        long objectSize = head.contentLength();
+        String eTag = head.eTag();
+        String header = eTag + " " + objectSize + " " + partSize;
+
+        Path checkpoint = target.resolveSibling(target.getFileName().toString() + CHECKPOINT_SUFFIX);
+        Set<Integer> completedParts = readCheckpoint(checkpoint, header);
+        if (completedParts != null && !completedParts.isEmpty() && !containsParts(target, completedParts, objectSize)) {
+            // the target was removed or truncated, the completed parts would stay empty
+            log.info("target {} does not contain the completed parts, ignore checkpoint", target);
+            completedParts = null;
+        }
+        if (completedParts == null) {
+            // no usable checkpoint, start from the beginning
+            completedParts = new HashSet<>();
+            Files.write(checkpoint, (header + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.deleteIfExists(target);
+        } else {
+            log.info("continue download of {}/{}, {} parts are already complete", bucket, key, completedParts.size());
+        }
+
+        long startTime = System.nanoTime();
+        int numberOfParts = (int) ((objectSize + partSize - 1) / partSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(numberOfParts, 1)));
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                BufferedWriter checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int partNumber = 0; partNumber < numberOfParts; partNumber++) {
+                if (completedParts.contains(partNumber)) {
+                    continue;
+                }
+                int pn = partNumber;
+                long start = partNumber * partSize;
+                long end = Math.min(start + partSize, objectSize) - 1;
+                futures.add(executor.submit(() -> {
+                    downloadPart(bucket, key, eTag, channel, start, end);
+                    // make sure the data is stored before the part is marked as complete
+                    channel.force(false);
+                    synchronized (checkpointWriter) {
+                        checkpointWriter.write(String.valueOf(pn));
+                        checkpointWriter.write('\n');
+                        checkpointWriter.flush();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            channel.truncate(objectSize);
+            channel.force(true);
+        } catch (ExecutionException e) {
+            TicketMetrics.getInstance().increment("s3_transfer_failures_total", 1, "bucket", bucket);
+            throw new IOException("Unable to download " + bucket + "/" + key, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download of " + bucket + "/" + key + " was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.delete(checkpoint);
+
+        double duration = MetricsTransferListener.seconds(System.nanoTime() - startTime);
+        TicketMetrics metrics = TicketMetrics.getInstance();
+        metrics.increment("s3_transfers_total", 1, "bucket", bucket);
+        metrics.increment("s3_transfer_bytes_total", objectSize, "bucket", bucket);
+        metrics.observe("s3_transfer_duration_seconds", TicketMetrics.DURATION_BUCKETS, duration, "bucket", bucket);
+        metrics.observe("s3_transfer_object_size_bytes", TicketMetrics.SIZE_BUCKETS, objectSize, "bucket", bucket);
+        if (duration > 0) {
+            metrics.observe("s3_transfer_throughput_bytes_per_second", TicketMetrics.THROUGHPUT_BUCKETS, objectSize / duration, "bucket", bucket);
+        }
+    }
+
+    private void downloadPart(String bucket, String key, String eTag, FileChannel channel, long start, long end) throws IOException {
+        log.trace("download range {}-{} of {}/{}", start, end, bucket, key);
+        long startTime = System.nanoTime();
+        try (InputStream in = s3.getObject(r -> r.bucket(bucket).key(key).range("bytes=" + start + "-" + end).ifMatch(eTag),
+                AsyncResponseTransformer.toBlockingInputStream()).join()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+        }
+        double duration = MetricsTransferListener.seconds(System.nanoTime() - startTime);
+        TicketMetrics.getInstance().observe("s3_download_part_duration_seconds", TicketMetrics.DURATION_BUCKETS, duration, "bucket", bucket);
+    }
+
+    /**
+     * Check that the target file is at least as large as the end of the last completed part
+     */
+
+    private boolean containsParts(Path target, Set<Integer> completedParts, long objectSize) throws IOException {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        int lastPart = Collections.max(completedParts);
+        long lastPartEnd = Math.min((lastPart + 1) * partSize, objectSize);
+        return Files.size(target) >= lastPartEnd;
+    }
+
+    /**
+     * Read the list of completed parts. Returns null, if no checkpoint exists or if it belongs to a different version of the object.
+     */
+
+    private Set<Integer> readCheckpoint(Path checkpoint, String header) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return null;
+        }
+        String content = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+        // ignore the last line, if it is not terminated. The process was stopped while writing it
+        String[] lines = content.substring(0, content.lastIndexOf('\n') + 1).split("\n");
+        if (!header.equals(lines[0])) {
+            log.debug("checkpoint {} is outdated, ignore it", checkpoint);
+            return null;
+        }
+        Set<Integer> completedParts = new HashSet<>();
+        for (int i = 1; i < lines.length; i++) {
+            try {
+                completedParts.add(Integer.valueOf(lines[i].trim()));
+            } catch (NumberFormatException e) {
+                log.debug("ignore invalid checkpoint entry {}", lines[i]);
+            }
+        }
+        return completedParts;
+    }
+}
@@ -0,0 +1,152 @@
+package org.goobi.api.mq;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+/**
+ * Metadata of an editorial photography shoot, read from the csv file of the archive.
+ *
+ * Only the header and the first row are parsed, the remaining rows are never read. The columns are resolved once when the header is read.
+ *
+ */
+
+public class ShootMetadata {
+
+    /**
+     * Columns of the csv file used by the import
+     */
+
+    public enum Column {
+        REFERENCE("Reference"),
+        TITLE("Title"),
+        SHOOT_TYPE("Shoot Type"),
+        LOCATION("Location"),
+        CAPTION("Caption"),
+        PEOPLE("People"),
+        KEYWORDS("Keywords"),
+        INTENDED_USAGE("Intended Usage"),
+        USAGE_TERMS("Usage Terms"),
+        STAFF_PHOTOGRAPHER("Staff Photog"),
+        FREELANCE_PHOTOGRAPHER("Freelance Photog"),
+        FREELANCER("Freelancer");
+
+        private final String header;
+
+        Column(String header) {
+            this.header = header;
+        }
+
+        public String getHeader() {
+            return header;
+        }
+    }
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final String[] values = new String[Column.values().length];
+
+    private ShootMetadata() {
+    }
+
+    /**
+     * Read the header and the first row of a csv file encoded in UTF-8. Invalid bytes are replaced.
+     *
+     * @param csvFile the csv file
+     * @return the metadata of the first row
+     * @throws IOException if the file cannot be read or contains no data row
+     */
+
+    public static ShootMetadata read(Path csvFile) throws IOException {
+        return read(csvFile, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the header and the first row of a csv file. Invalid bytes are replaced.
+     *
+     * @param csvFile the csv file
+     * @param charset encoding of the file
+     * @return the metadata of the first row
+     * @throws IOException if the file cannot be read or contains no data row
+     */
+
+    public static ShootMetadata read(Path csvFile, Charset charset) throws IOException {
+        // invalid bytes are replaced instead of failing the import, e.g. for a file exported in cp1252
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try (Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(csvFile), decoder))) {
+            Iterator<CSVRecord> records = CSVFormat.RFC4180.parse(reader).iterator();
+            if (!records.hasNext()) {
+                throw new IOException("csv file " + csvFile + " is empty");
+            }
+            int[] indexes = resolveColumns(records.next());
+            if (!records.hasNext()) {
+                throw new IOException("csv file " + csvFile + " contains no data");
+            }
+            CSVRecord firstRow = records.next();
+            ShootMetadata metadata = new ShootMetadata();
+            for (Column column : Column.values()) {
+                int index = indexes[column.ordinal()];
+                if (index >= 0 && index < firstRow.size()) {
+                    metadata.values[column.ordinal()] = firstRow.get(index);
+                }
+            }
+            return metadata;
+        }
+    }
+
+    private static int[] resolveColumns(CSVRecord header) {
+        int[] indexes = new int[Column.values().length];
+        for (Column column : Column.values()) {
+            indexes[column.ordinal()] = -1;
+        }
+        for (int i = 0; i < header.size(); i++) {
+            String name = header.get(i);
+            if (i == 0 && !name.isEmpty() && name.charAt(0) == BYTE_ORDER_MARK) {
+                name = name.substring(1);
+            }
+            for (Column column : Column.values()) {
+                // the last column with this name wins, like in the previous index map
+                if (column.getHeader().equals(name)) {
+                    indexes[column.ordinal()] = i;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Get the value of a column
+     *
+     * @param column the column
+     * @return the value or an empty string, if the column does not exist
+     */
+
+    public String get(Column column) {
+        String value = values[column.ordinal()];
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Get the value of a column
+     *
+     * @param column the column
+     * @return the value or null, if the column does not exist
+     */
+
+    public String getOrNull(Column column) {
+        return values[column.ordinal()];
+    }
+}
@@ -0,0 +1,176 @@
+package org.goobi.api.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.ScriptThreadWithoutHibernate;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Runs automatic steps and other step related work on a bounded pool.
+ *
+ * Tasks that cannot start right away wait in a queue, tasks with a higher priority are started first. The number of parallel tasks can be
+ * configured with the system property goobi.tickets.stepConcurrency, it defaults to the number of processors. Queue depth, running tasks, waiting
+ * time and run time are exported as metrics.
+ *
+ * The limit only applies to the tasks submitted here. Closing a step through {@link de.sub.goobi.helper.CloseStepHelper} starts the following
+ * automatic steps on script threads of the Goobi core, those are not counted and not limited by this pool.
+ *
+ * The queue is only kept in memory. Tasks that have not started when the web application is stopped are dropped and written to the journal of
+ * their process.
+ *
+ */
+
+@Log4j2
+public class StepScheduler {
+
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
+    private static StepScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private StepScheduler() {
+        int concurrency = Integer.getInteger("goobi.tickets.stepConcurrency", Runtime.getRuntime().availableProcessors());
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "step-scheduler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        TicketMetrics.getInstance().registerGauge("step_scheduler_queue_depth", () -> executor.getQueue().size());
+        TicketMetrics.getInstance().registerGauge("step_scheduler_running", running::get);
+        log.info("run at most {} steps in parallel", concurrency);
+    }
+
+    public static synchronized StepScheduler getInstance() {
+        if (instance == null) {
+            instance = new StepScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Run an automatic step, the priority of the step is used
+     *
+     * @param step the step to run
+     */
+
+    public void submitStep(Step step) {
+        int priority = step.getPrioritaet() == null ? DEFAULT_PRIORITY : step.getPrioritaet();
+        submit("step " + step.getId() + " (" + step.getTitel() + ")", step.getProcessId(), priority,
+                () -> new ScriptThreadWithoutHibernate(step).run());
+    }
+
+    /**
+     * Run a task on the pool
+     *
+     * @param name name of the task for the log
+     * @param processId process of the task, a dropped task is written into its journal
+     * @param priority tasks with a higher priority are started first
+     * @param task the task to run
+     */
+
+    public void submit(String name, Integer processId, int priority, Runnable task) {
+        executor.execute(new PrioritizedTask(name, processId, priority, sequence.incrementAndGet(), task));
+    }
+
+    /**
+     * Stop the pool, if it was used. Waiting tasks are not started anymore, they are written to the log and to the journal of their process, so
+     * the steps can be started again by hand. Running tasks get some time to finish. This is called when the web application is stopped.
+     */
+
+    static void shutdown() {
+        StepScheduler scheduler;
+        synchronized (StepScheduler.class) {
+            scheduler = instance;
+        }
+        if (scheduler == null) {
+            return;
+        }
+        List<Runnable> dropped = new ArrayList<>();
+        scheduler.executor.getQueue().drainTo(dropped);
+        scheduler.executor.shutdown();
+        for (Runnable runnable : dropped) {
+            PrioritizedTask task = (PrioritizedTask) runnable;
+            log.error("The application is stopping, {} of process {} was not started", task.name, task.processId);
+            if (task.processId != null) {
+                Helper.addMessageToProcessJournal(task.processId, LogType.ERROR,
+                        "The application was stopped before " + task.name + " could start, it must be started again.", "ticket");
+            }
+        }
+        try {
+            if (!scheduler.executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("{} steps were still running when the application stopped", scheduler.running.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+        private final String name;
+
+        private final Integer processId;
+
+        private final int priority;
+
+        private final long sequenceNumber;
+
+        private final Runnable task;
+
+        private final long queuedAt = System.nanoTime();
+
+        private PrioritizedTask(String name, Integer processId, int priority, long sequenceNumber, Runnable task) {
+            this.name = name;
+            this.processId = processId;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            TicketMetrics metrics = TicketMetrics.getInstance();
+            metrics.observe("step_scheduler_wait_seconds", TicketMetrics.DURATION_BUCKETS, MetricsTransferListener.seconds(start - queuedAt));
+            running.incrementAndGet();
+            try {
+                log.debug("start {}", name);
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Error while running {}", name, e);
+                metrics.increment("step_scheduler_errors_total", 1);
+            } finally {
+                running.decrementAndGet();
+                double seconds = MetricsTransferListener.seconds(System.nanoTime() - start);
+                metrics.observe("step_scheduler_run_seconds", TicketMetrics.DURATION_BUCKETS, seconds);
+                log.debug("finished {} in {} s", name, seconds);
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            // higher priority first, then in order of submission
+            int result = Integer.compare(other.priority, priority);
+            return result != 0 ? result : Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
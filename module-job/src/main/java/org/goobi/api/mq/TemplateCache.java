@@ -0,0 +1,153 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.beans.Process;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import lombok.extern.log4j.Log4j2;
+import ugh.dl.DocStructType;
+import ugh.dl.MetadataType;
+import ugh.dl.Prefs;
+
+/**
+ * Keeps process templates and their parsed rulesets in memory.
+ *
+ * A template is loaded again after a few minutes or as soon as the modification date of its ruleset file changes. Together with the ruleset the
+ * metadata and structure types used by the import are resolved once.
+ *
+ */
+
+@Log4j2
+public class TemplateCache {
+
+    private static final long TTL = TimeUnit.MINUTES.toNanos(5);
+
+    private static TemplateCache instance;
+
+    private final Map<Integer, CachedTemplate> templates = new HashMap<>();
+
+    private TemplateCache() {
+    }
+
+    public static synchronized TemplateCache getInstance() {
+        if (instance == null) {
+            instance = new TemplateCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get a template and its ruleset.
+     *
+     * @param templateId id of the template
+     * @param metadataTypes names of the metadata types to resolve
+     * @param docStructTypes names of the structure types to resolve
+     * @return the template
+     */
+
+    public synchronized CachedTemplate getTemplate(int templateId, String[] metadataTypes, String[] docStructTypes) {
+        CachedTemplate cached = templates.get(templateId);
+        if (cached != null && cached.expiry - System.nanoTime() > 0 && cached.rulesetModified == getLastModified(cached.rulesetFile)) {
+            return cached;
+        }
+        Process template = ProcessManager.getProcessById(templateId);
+        // load the lazy lists now, the template is shared between tickets
+        template.getSchritteList();
+        template.getEigenschaften();
+
+        Path rulesetFile = Paths.get(ConfigurationHelper.getInstance().getRulesetFolder(), template.getRegelsatz().getDatei());
+        long rulesetModified = getLastModified(rulesetFile);
+        log.debug("load template {} with ruleset {}", templateId, rulesetFile);
+        Prefs prefs = template.getRegelsatz().getPreferences();
+        cached = new CachedTemplate(template, new RulesetTypes(prefs, metadataTypes, docStructTypes), rulesetFile, rulesetModified,
+                System.nanoTime() + TTL);
+        templates.put(templateId, cached);
+        return cached;
+    }
+
+    private static long getLastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A template together with the resolved types of its ruleset
+     */
+
+    public static class CachedTemplate {
+
+        private final Process template;
+
+        private final RulesetTypes types;
+
+        private final Path rulesetFile;
+
+        private final long rulesetModified;
+
+        private final long expiry;
+
+        private CachedTemplate(Process template, RulesetTypes types, Path rulesetFile, long rulesetModified, long expiry) {
+            this.template = template;
+            this.types = types;
+            this.rulesetFile = rulesetFile;
+            this.rulesetModified = rulesetModified;
+            this.expiry = expiry;
+        }
+
+        public Process getTemplate() {
+            return template;
+        }
+
+        public RulesetTypes getTypes() {
+            return types;
+        }
+    }
+
+    /**
+     * Parsed ruleset with metadata and structure types that are resolved in advance
+     */
+
+    public static class RulesetTypes {
+
+        private final Prefs prefs;
+
+        private final Map<String, MetadataType> metadataTypes = new HashMap<>();
+
+        private final Map<String, DocStructType> docStructTypes = new HashMap<>();
+
+        private RulesetTypes(Prefs prefs, String[] metadataTypeNames, String[] docStructTypeNames) {
+            this.prefs = prefs;
+            for (String name : metadataTypeNames) {
+                metadataTypes.put(name, prefs.getMetadataTypeByName(name));
+            }
+            for (String name : docStructTypeNames) {
+                docStructTypes.put(name, prefs.getDocStrctTypeByName(name));
+            }
+        }
+
+        public Prefs getPrefs() {
+            return prefs;
+        }
+
+        public MetadataType getMetadataType(String name) {
+            MetadataType type = metadataTypes.get(name);
+            return type != null ? type : prefs.getMetadataTypeByName(name);
+        }
+
+        public DocStructType getDocStructType(String name) {
+            DocStructType type = docStructTypes.get(name);
+            return type != null ? type : prefs.getDocStrctTypeByName(name);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.goobi.api.mq;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.goobi.production.enums.PluginReturnValue;
+
+import jakarta.jms.JMSException;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Submits a ticket again later, if it cannot be executed right now.
+ *
+ * A handler that has to wait returns {@link PluginReturnValue#WAIT} from {@link #defer(TaskTicket, String)}. This is not counted as an error. The
+ * synchronous handlers pass their result to {@link #resolve(TaskTicket, String, PluginReturnValue)}, the {@link AsyncTicketExecutor} does the
+ * same for the asynchronous ones. The ticket is then submitted to the slow queue again after a delay, which doubles with every deferral of the
+ * same ticket up to ten minutes. There is no limit on the number of deferrals. Waiting tickets are only kept in memory, when the web application
+ * is stopped they are submitted at once.
+ *
+ */
+
+@Log4j2
+public final class TicketDeferral {
+
+    private static final long INITIAL_DELAY_SECONDS = 30;
+
+    private static final long MAX_DELAY_SECONDS = 600;
+
+    private static final String DEFERRALS_PROPERTY = "deferrals";
+
+    // tickets waiting for their delay
+    private static final Set<WaitingTicket> waitingTickets = ConcurrentHashMap.newKeySet();
+
+    private static ScheduledExecutorService scheduler;
+
+    private TicketDeferral() {
+    }
+
+    /**
+     * Report that the ticket cannot be executed right now.
+     *
+     * @param ticket the ticket to defer
+     * @param ticketName name of the ticket in the queue
+     * @return {@link PluginReturnValue#WAIT}
+     */
+
+    public static PluginReturnValue defer(TaskTicket ticket, String ticketName) {
+        log.info("{} ticket for process {} cannot be executed right now, it is submitted again later", ticketName, ticket.getProcessId());
+        TicketMetrics.getInstance().increment("ticket_deferrals_total", 1, "handler", ticketName);
+        return PluginReturnValue.WAIT;
+    }
+
+    /**
+     * Submit a deferred ticket again after a delay. Other results are returned unchanged.
+     *
+     * @param ticket the executed ticket
+     * @param ticketName name of the ticket in the queue
+     * @param result result of the ticket handler
+     * @return {@link PluginReturnValue#FINISH} for a deferred ticket, because the message is replaced by the new one, otherwise the result
+     */
+
+    public static PluginReturnValue resolve(TaskTicket ticket, String ticketName, PluginReturnValue result) {
+        if (result != PluginReturnValue.WAIT) {
+            return result;
+        }
+        int deferrals = NumberUtils.toInt(ticket.getProperties().get(DEFERRALS_PROPERTY), 0);
+        long delay = Math.min(INITIAL_DELAY_SECONDS << Math.min(deferrals, 10), MAX_DELAY_SECONDS);
+        ticket.getProperties().put(DEFERRALS_PROPERTY, String.valueOf(deferrals + 1));
+        WaitingTicket waitingTicket = new WaitingTicket(ticket, ticketName);
+        waitingTickets.add(waitingTicket);
+        try {
+            getScheduler().schedule(() -> submit(waitingTicket), delay, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // the application is stopping, the ticket must not wait in memory
+            submit(waitingTicket);
+        }
+        log.debug("{} ticket for process {} is submitted again in {} s", ticketName, ticket.getProcessId(), delay);
+        return PluginReturnValue.FINISH;
+    }
+
+    /**
+     * Submit all waiting tickets at once and stop the timer. This is called when the web application is stopped.
+     */
+
+    static void shutdown() {
+        synchronized (TicketDeferral.class) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+        for (WaitingTicket waitingTicket : waitingTickets) {
+            submit(waitingTicket);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ticket-deferral");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    private static void submit(WaitingTicket waitingTicket) {
+        // the timer and the shutdown may run at the same time, only one of them submits the ticket
+        if (!waitingTickets.remove(waitingTicket)) {
+            return;
+        }
+        TaskTicket ticket = waitingTicket.ticket;
+        try {
+            TicketGenerator.submitInternalTicket(ticket, QueueType.SLOW_QUEUE, waitingTicket.ticketName,
+                    ticket.getProcessId() == null ? 0 : ticket.getProcessId());
+        } catch (JMSException e) {
+            log.error("Unable to submit the deferred {} ticket for process {}", waitingTicket.ticketName, ticket.getProcessId(), e);
+        }
+    }
+
+    private static final class WaitingTicket {
+        private final TaskTicket ticket;
+        private final String ticketName;
+
+        private WaitingTicket(TaskTicket ticket, String ticketName) {
+            this.ticket = ticket;
+            this.ticketName = ticketName;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.goobi.api.mq;
+
+import java.util.Set;
+
+import jakarta.servlet.ServletContainerInitializer;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Stops the background work of the tickets together with the web application.
+ *
+ * The class is registered in META-INF/services, so the servlet container calls it for the Goobi web application even if the web.xml is complete.
+ * It adds itself as listener, which is called before the listeners of the application itself are stopped. At this time the s3 client and the
+ * database are still available.
+ *
+ */
+
+@Log4j2
+public class TicketLifecycleListener implements ServletContainerInitializer, ServletContextListener {
+
+    @Override
+    public void onStartup(Set<Class<?>> classes, ServletContext context) {
+        context.addListener(this);
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // nothing to do, the classes start on first use
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        log.info("stop background work of the tickets");
+        // running tickets may still collect objects to delete
+        AsyncTicketExecutor.shutdown();
+        StepScheduler.shutdown();
+        HistoryUpdateQueue.shutdown();
+        TicketDeferral.shutdown();
+        S3DeleteBatcher.shutdown();
+    }
+}
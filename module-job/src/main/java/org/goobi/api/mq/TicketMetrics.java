@@ -0,0 +1,218 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.sub.goobi.config.ConfigurationHelper;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Registry for the metrics of the ticket handlers.
+ *
+ * The metrics are available via JMX as org.goobi.api.mq:type=TicketMetrics and are written every 30 seconds in the prometheus text format into
+ * ticket_metrics.prom in the goobi temporary folder, where a node exporter or any other scraper can pick them up.
+ *
+ */
+
+@Log4j2
+public class TicketMetrics implements TicketMetricsMBean {
+
+    /** bucket boundaries for durations in seconds */
+    public static final double[] DURATION_BUCKETS = { 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 3600 };
+
+    /** bucket boundaries for sizes in bytes */
+    public static final double[] SIZE_BUCKETS = { 1L << 20, 10L << 20, 100L << 20, 1L << 30, 5L << 30, 10L << 30, 50L << 30 };
+
+    /** bucket boundaries for throughput in bytes per second */
+    public static final double[] THROUGHPUT_BUCKETS = { 1L << 20, 5L << 20, 10L << 20, 50L << 20, 100L << 20, 500L << 20, 1L << 30 };
+
+    private static final long WRITE_INTERVAL_SECONDS = 30;
+
+    private static final String METRICS_FILE_NAME = "ticket_metrics.prom";
+
+    private static TicketMetrics instance;
+
+    // metric name -> type
+    private final Map<String, String> types = new ConcurrentSkipListMap<>();
+
+    // metric name including labels -> value
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+
+    private TicketMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("org.goobi.api.mq:type=TicketMetrics"));
+        } catch (JMException e) {
+            log.warn("Unable to register ticket metrics in JMX", e);
+        }
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ticket-metrics-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::writeMetricsFile, WRITE_INTERVAL_SECONDS, WRITE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static synchronized TicketMetrics getInstance() {
+        if (instance == null) {
+            instance = new TicketMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * Increase a counter
+     *
+     * @param name name of the metric
+     * @param labels label names and values, alternating
+     * @param value amount to add
+     */
+
+    public void increment(String name, long value, String... labels) {
+        types.putIfAbsent(name, "counter");
+        counters.computeIfAbsent(name + formatLabels(labels), k -> new LongAdder()).add(value);
+    }
+
+    /**
+     * Record a value in a histogram
+     *
+     * @param name name of the metric
+     * @param buckets upper bounds of the histogram buckets
+     * @param value observed value
+     * @param labels label names and values, alternating
+     */
+
+    public void observe(String name, double[] buckets, double value, String... labels) {
+        types.putIfAbsent(name, "histogram");
+        histograms.computeIfAbsent(name + "\t" + formatLabels(labels), k -> new Histogram(buckets)).observe(value);
+    }
+
+    /**
+     * Register a value that is read each time the metrics are exported
+     *
+     * @param name name of the metric
+     * @param supplier provides the current value
+     */
+
+    public void registerGauge(String name, Supplier<Number> supplier) {
+        types.putIfAbsent(name, "gauge");
+        gauges.put(name, supplier);
+    }
+
+    @Override
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> type : types.entrySet()) {
+            String name = type.getKey();
+            sb.append("# TYPE ").append(name).append(' ').append(type.getValue()).append('\n');
+            switch (type.getValue()) {
+                case "counter":
+                    for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+                        if (hasName(counter.getKey(), name)) {
+                            sb.append(counter.getKey()).append(' ').append(counter.getValue().sum()).append('\n');
+                        }
+                    }
+                    break;
+                case "histogram":
+                    for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+                        String[] parts = histogram.getKey().split("\t", 2);
+                        if (name.equals(parts[0])) {
+                            histogram.getValue().append(sb, name, parts[1]);
+                        }
+                    }
+                    break;
+                default:
+                    Supplier<Number> supplier = gauges.get(name);
+                    if (supplier != null) {
+                        sb.append(name).append(' ').append(supplier.get()).append('\n');
+                    }
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void writeMetricsFile() {
+        Path metricsFile = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), METRICS_FILE_NAME);
+        Path tempFile = metricsFile.resolveSibling(METRICS_FILE_NAME + ".tmp");
+        try {
+            Files.write(tempFile, getMetrics().getBytes(StandardCharsets.UTF_8));
+            // replace the file in one step, so a scraper never reads an incomplete file
+            Files.move(tempFile, metricsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to write metrics file {}", metricsFile, e);
+        }
+    }
+
+    private static boolean hasName(String key, String name) {
+        return key.equals(name) || key.startsWith(name + "{");
+    }
+
+    private static String formatLabels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static class Histogram {
+        private final double[] buckets;
+        private final LongAdder[] bucketCounts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] buckets) {
+            this.buckets = buckets;
+            bucketCounts = new LongAdder[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        private void observe(double value) {
+            for (int i = 0; i < buckets.length; i++) {
+                if (value <= buckets[i]) {
+                    bucketCounts[i].increment();
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        private void append(StringBuilder sb, String name, String labels) {
+            String labelPrefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            for (int i = 0; i < buckets.length; i++) {
+                sb.append(name).append("_bucket").append(labelPrefix).append("le=\"").append(buckets[i]).append("\"} ");
+                sb.append(bucketCounts[i].sum()).append('\n');
+            }
+            sb.append(name).append("_bucket").append(labelPrefix).append("le=\"+Inf\"} ").append(count.sum()).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(sum.sum()).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(count.sum()).append('\n');
+        }
+    }
+}
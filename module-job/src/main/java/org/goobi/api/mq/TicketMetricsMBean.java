@@ -0,0 +1,20 @@
+package org.goobi.api.mq;
+
+/**
+ * JMX interface of {@link TicketMetrics}
+ */
+
+public interface TicketMetricsMBean {
+
+    /**
+     * Get all metrics in the prometheus text format
+     */
+
+    String getMetrics();
+
+    /**
+     * Write the metrics into the metrics file immediately
+     */
+
+    void writeMetricsFile();
+}
@@ -1,33 +1,49 @@
 package org.goobi.api.mq;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
-import org.goobi.beans.Process;
 import org.goobi.beans.Step;
 import org.goobi.production.enums.LogType;
 import org.goobi.production.enums.PluginReturnValue;
 
+import de.sub.goobi.config.ConfigurationHelper;
 import de.sub.goobi.helper.CloseStepHelper;
 import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.S3FileUtils;
 import de.sub.goobi.helper.StorageProvider;
-import de.sub.goobi.helper.enums.StepStatus;
-import de.sub.goobi.persistence.managers.ProcessManager;
+import de.sub.goobi.persistence.managers.StepManager;
 import lombok.extern.log4j.Log4j2;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 
 @Log4j2
 public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
 
+    private static final int EXTRACTION_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
     @Override
     public String getTicketHandlerName() {
         return "unzip";
@@ -35,6 +51,10 @@ public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
 
     @Override
     public PluginReturnValue call(TaskTicket ticket) {
+        return TicketDeferral.resolve(ticket, getTicketHandlerName(), execute(ticket));
+    }
+
+    private PluginReturnValue execute(TaskTicket ticket) {
 
         String source = ticket.getProperties().get("filename");
 
@@ -47,12 +67,53 @@ public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
         if (StringUtils.isBlank(jp2Folder)) {
             jp2Folder = tifFolder;
         }
+        // extract next to the destination and move the files instead of copying them
+        boolean extractDirectly = "true".equalsIgnoreCase(ticket.getProperties().get("extractDirectly"));
+        boolean s3Storage = ConfigurationHelper.getInstance().useS3();
+
+        Path masterDir = Paths.get(tifFolder);
+        Path derivativeDir = Paths.get(jp2Folder);
+
         Path workDir = null;
         Path zipFile = null;
+        DiskSpaceReservations.Reservation reservation = null;
         try {
-            workDir = Files.createTempDirectory(UUID.randomUUID().toString());
             zipFile = Paths.get(source);
-            Path directory = unzip(zipFile, workDir);
+
+            // check the central directory first, a rejected archive is never extracted
+            ArchiveValidator.Verdict verdict = masterDir.equals(derivativeDir) ? ArchiveValidator.validate(zipFile, masterDir)
+                    : ArchiveValidator.validate(zipFile, masterDir, derivativeDir);
+            Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.INFO, verdict.getJournalMessage(), "ticket");
+            if (!verdict.isAccepted()) {
+                FileUtils.deleteQuietly(zipFile.toFile());
+                // existing data is not an error, the archive was already imported
+                return verdict.getRejection() == ArchiveValidator.Rejection.DESTINATION_NOT_EMPTY ? PluginReturnValue.FINISH
+                        : PluginReturnValue.ERROR;
+            }
+
+            if (extractDirectly && !s3Storage) {
+                // use the same file system as the destination, so the files can be renamed
+                workDir = createStagingDir(zipFile, masterDir);
+            } else {
+                workDir = Files.createTempDirectory(UUID.randomUUID().toString());
+            }
+
+            // reserve the space for the extracted files and for the copies in the process folder
+            List<Path> folders = new ArrayList<>();
+            folders.add(workDir);
+            if (!s3Storage && !extractDirectly) {
+                folders.add(masterDir);
+            }
+            reservation = DiskSpaceReservations.getInstance().reserve(verdict.getUncompressedSize(), folders.toArray(new Path[0]));
+            if (reservation == null) {
+                // not enough space right now, try again later
+                FileUtils.deleteQuietly(workDir.toFile());
+                return TicketDeferral.defer(ticket, getTicketHandlerName());
+            }
+
+            // checksums of the extracted files, computed while the files are written
+            Map<Path, String> checksums = new HashMap<>();
+            Path directory = unzip(zipFile, workDir, checksums);
 
             //            Files.delete(zipFile);
             // alto files are imported into alto directory
@@ -102,9 +163,6 @@ public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
                 return PluginReturnValue.ERROR;
             }
 
-            Path masterDir = Paths.get(tifFolder);
-            Path derivativeDir = Paths.get(jp2Folder);
-
             if (!Files.exists(masterDir)) {
                 Files.createDirectories(masterDir);
             }
@@ -112,38 +170,59 @@ public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
                 Files.createDirectories(derivativeDir);
             }
 
-            // list all existing files
-            List<String> files = StorageProvider.getInstance().list(masterDir.toString());
-            files.addAll(StorageProvider.getInstance().list(derivativeDir.toString()));
-
-            if (files.isEmpty()) {
-                // import the data only if the process is empty
-                for (Path object : objectFiles) {
-                    if (object.getFileName().toString().toLowerCase().endsWith("jp2")) {
-                        StorageProvider.getInstance().copyFile(object, derivativeDir.resolve(object.getFileName().toString().replace(" ", "")));
-                    } else {
-                        StorageProvider.getInstance().copyFile(object, masterDir.resolve(object.getFileName().toString().replace(" ", "")));
+            FolderProbe probe = FolderProbe.getInstance();
+            Path[] destinations = masterDir.equals(derivativeDir) ? new Path[] { masterDir } : new Path[] { masterDir, derivativeDir };
+            // import the data only if the process is empty, no other ticket can use the folders until they are released
+            if (probe.claimIfEmpty(destinations)) {
+                Map<String, String> importedChecksums = new HashMap<>();
+                try {
+                    for (Path object : objectFiles) {
+                        String newFileName = object.getFileName().toString().replace(" ", "");
+                        Path destination;
+                        if (object.getFileName().toString().toLowerCase().endsWith("jp2")) {
+                            destination = derivativeDir.resolve(newFileName);
+                        } else {
+                            destination = masterDir.resolve(newFileName);
+                        }
+                        if (extractDirectly) {
+                            FilePlacement.move(object, destination);
+                        } else {
+                            StorageProvider.getInstance().copyFile(object, destination);
+                        }
+                        if (checksums.containsKey(object)) {
+                            importedChecksums.put(newFileName, checksums.get(object));
+                        }
                     }
+                } finally {
+                    probe.release(destinations);
+                }
+                try {
+                    FileChecksums.writeManifest(FileChecksums.getImportFolder(ticket.getProcessId()), importedChecksums);
+                } catch (IOException e) {
+                    log.error("Unable to store checksums", e);
                 }
 
                 String closeStepValue = ticket.getProperties().get("closeStep");
 
                 if (StringUtils.isNotBlank(closeStepValue) && "true".equals(closeStepValue)) {
-                    Process process = ProcessManager.getProcessById(ticket.getProcessId());
-
-                    Step stepToClose = null;
-
-                    for (Step processStep : process.getSchritte()) {
-                        if (processStep.getBearbeitungsstatusEnum() == StepStatus.OPEN
-                                || processStep.getBearbeitungsstatusEnum() == StepStatus.INWORK) {
-                            // check against a list of configured step names ?
-                            stepToClose = processStep;
-                            break;
+                    // check against a list of configured step names ?
+                    ProcessStateCache.StepState openStep = ProcessStateCache.getInstance().getFirstOpenStep(ticket.getProcessId());
+                    if (openStep != null) {
+                        Step stepToClose = StepManager.getStepById(openStep.getId());
+                        Runnable close = () -> {
+                            CloseStepHelper.closeStep(stepToClose, null);
+                            ProcessStateCache.getInstance().invalidate(ticket.getProcessId());
+                            ProcessTitleIndex.getInstance().invalidate(stepToClose.getProzess().getTitel());
+                        };
+                        if ("true".equalsIgnoreCase(ticket.getProperties().get("scheduleCloseStep"))) {
+                            // closing the step runs on the bounded step pool instead of the ticket thread. The automatic steps it starts
+                            // are run by the Goobi core and are not limited by the pool
+                            int priority = stepToClose.getPrioritaet() == null ? StepScheduler.DEFAULT_PRIORITY : stepToClose.getPrioritaet();
+                            StepScheduler.getInstance().submit("close step " + stepToClose.getId(), ticket.getProcessId(), priority, close);
+                        } else {
+                            close.run();
                         }
                     }
-                    if (stepToClose != null) {
-                        CloseStepHelper.closeStep(stepToClose, null);
-                    }
                 }
             } else {
                 Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.INFO, "File import aborted, directory is not empty.", "ticket");
@@ -157,30 +236,206 @@ public class UnzipFileHandler implements TicketHandler<PluginReturnValue> {
             Helper.addMessageToProcessJournal(ticket.getProcessId(), LogType.ERROR, e.getMessage(), "ticket");
 
             FileUtils.deleteQuietly(zipFile.toFile());
-            FileUtils.deleteQuietly(workDir.toFile());
+            if (workDir != null) {
+                FileUtils.deleteQuietly(workDir.toFile());
+            }
             return PluginReturnValue.ERROR;
+        } finally {
+            if (reservation != null) {
+                reservation.close();
+            }
         }
 
         return PluginReturnValue.FINISH;
     }
 
+    /**
+     * Create a folder to extract the archive into, on the file system of the destination. The folder of the downloaded archive is used if possible,
+     * otherwise the metadata folder. Both are outside of the process folders, so the extracted files never appear in the image folders. If neither
+     * is on the same file system, a temporary folder is used and the files are copied when they are moved.
+     */
+
+    private static Path createStagingDir(Path zipFile, Path destination) throws IOException {
+        Path existing = destination.toAbsolutePath();
+        while (existing.getParent() != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        FileStore destinationStore = Files.getFileStore(existing);
+        List<Path> candidates = new ArrayList<>();
+        if (zipFile.toAbsolutePath().getParent() != null) {
+            candidates.add(zipFile.toAbsolutePath().getParent());
+        }
+        candidates.add(Paths.get(ConfigurationHelper.getInstance().getMetadataFolder()));
+        for (Path candidate : candidates) {
+            if (Files.isDirectory(candidate) && destinationStore.equals(Files.getFileStore(candidate))) {
+                return Files.createDirectory(candidate.resolve("." + UUID.randomUUID().toString()));
+            }
+        }
+        return Files.createTempDirectory(UUID.randomUUID().toString());
+    }
+
+    /**
+     * Get the size of all entries after extraction. Only the central directory of the zip file is read.
+     * 
+     * @param zipFile the zip file
+     * @return the uncompressed size in bytes
+     * @throws IOException if the file is not a valid zip file
+     */
+
+    public static long getUncompressedSize(final Path zipFile) throws IOException {
+        long size = 0;
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                size += entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+            }
+        }
+        return size;
+    }
+
     public static Path unzip(final Path zipFile, final Path output) throws IOException {
-        Path unzippedFolder = output;
-        try (ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(zipFile))) {
+        return unzip(zipFile, output, null);
+    }
+
+    /**
+     * Extract a zip file and compute the SHA-256 checksum of each extracted file. The entries are read via the central directory and are extracted
+     * in parallel.
+     * 
+     * @param zipFile the zip file
+     * @param output directory to extract the data into
+     * @param checksums map to store the checksums of the extracted files, can be null
+     * @return the output directory or the first sub folder, if the archive contains one
+     * @throws IOException
+     */
+
+    public static Path unzip(final Path zipFile, final Path output, final Map<Path, String> checksums) throws IOException {
+        long start = System.nanoTime();
+        long size = 0;
+        // the entries are independent from each other, inflate them in parallel using the central directory
+        ExecutorService executor = Executors.newFixedThreadPool(EXTRACTION_THREADS);
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            List<Future<Void>> extractions = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                final Path toPath = output.resolve(entry.getName());
+                if (entry.isDirectory()) {
+                    Files.createDirectories(toPath);
+                } else {
+                    size += Math.max(entry.getSize(), 0);
+                    Files.createDirectories(toPath.getParent());
+                    extractions.add(executor.submit(() -> {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            if (checksums != null) {
+                                String checksum = FileChecksums.copy(in, toPath);
+                                synchronized (checksums) {
+                                    checksums.put(toPath, checksum);
+                                }
+                            } else {
+                                Files.copy(in, toPath);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<Void> extraction : extractions) {
+                extraction.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction of " + zipFile + " was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        recordExtraction("parallel", start, size);
+        return getUnzippedFolder(output);
+    }
+
+    /**
+     * Stream an object from s3 and extract it on the fly into the output directory. The archive itself is never stored on local disk.
+     * 
+     * @param bucket name of the bucket
+     * @param key key of the zip file
+     * @param output directory to extract the data into
+     * @param checksums map to store the checksums of the extracted files, can be null
+     * @return the output directory or the first sub folder, if the archive contains one
+     * @throws IOException
+     */
+
+    public static Path unzipFromS3(final String bucket, final String key, final Path output, final Map<Path, String> checksums)
+            throws IOException {
+        S3FileUtils utils = (S3FileUtils) StorageProvider.getInstance();
+        log.debug("stream {}/{} into {}", bucket, key, output);
+        ResponseInputStream<GetObjectResponse> in;
+        try {
+            in = utils.getS3().getObject(r -> r.bucket(bucket).key(key), AsyncResponseTransformer.toBlockingInputStream()).join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to read " + bucket + "/" + key, e.getCause());
+        }
+        return unzip(in, output, checksums);
+    }
+
+    /**
+     * Extract a zip archive from the given stream into the output directory. The stream is read exactly once and closed afterwards, this allows to
+     * extract data directly from a network stream without storing the archive first.
+     * 
+     * @param in stream containing the zip archive
+     * @param output directory to extract the data into
+     * @param checksums map to store the checksums of the extracted files, can be null
+     * @return the output directory or the first sub folder, if the archive contains one
+     * @throws IOException
+     */
+
+    public static Path unzip(final InputStream in, final Path output, final Map<Path, String> checksums) throws IOException {
+        long start = System.nanoTime();
+        long size = 0;
+        try (ZipInputStream zipInputStream = new ZipInputStream(in)) {
             ZipEntry entry;
             while ((entry = zipInputStream.getNextEntry()) != null) {
                 final Path toPath = output.resolve(entry.getName());
                 if (entry.isDirectory()) {
                     Files.createDirectories(toPath);
                 } else {
+                    size += Math.max(entry.getSize(), 0);
                     Path directory = toPath.getParent();
                     if (!Files.exists(directory)) {
                         Files.createDirectories(directory);
                     }
-                    Files.copy(zipInputStream, toPath);
+                    if (checksums != null) {
+                        checksums.put(toPath, FileChecksums.copy(zipInputStream, toPath));
+                    } else {
+                        Files.copy(zipInputStream, toPath);
+                    }
                 }
             }
         }
+        recordExtraction("streaming", start, size);
+        return getUnzippedFolder(output);
+    }
+
+    /**
+     * Record duration and throughput of an extraction, to compare the parallel and the streaming extraction in production
+     */
+
+    private static void recordExtraction(String mode, long start, long size) {
+        double duration = MetricsTransferListener.seconds(System.nanoTime() - start);
+        TicketMetrics metrics = TicketMetrics.getInstance();
+        metrics.observe("unzip_duration_seconds", TicketMetrics.DURATION_BUCKETS, duration, "mode", mode);
+        metrics.increment("unzip_bytes_total", size, "mode", mode);
+        if (duration > 0 && size > 0) {
+            metrics.observe("unzip_throughput_bytes_per_second", TicketMetrics.THROUGHPUT_BUCKETS, size / duration, "mode", mode);
+        }
+    }
+
+    private static Path getUnzippedFolder(final Path output) {
+        Path unzippedFolder = output;
         // check if the extracted file contains a sub folder
         try (DirectoryStream<Path> folderFiles = Files.newDirectoryStream(output)) {
             for (Path file : folderFiles) {
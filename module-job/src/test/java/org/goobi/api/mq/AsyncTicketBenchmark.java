@@ -0,0 +1,103 @@
+package org.goobi.api.mq;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.goobi.production.enums.PluginReturnValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the ticket throughput of blocking consumers with the asynchronous execution.
+ *
+ * A fixed number of consumer threads take the tickets, like the queue listeners of Goobi. Each ticket waits for a simulated s3 request. In the
+ * blocking mode the consumer runs the ticket itself, in the asynchronous mode it hands the ticket to {@link AsyncTicketExecutor}. The result is the
+ * time until all tickets are finished.
+ *
+ * Run it with: mvn -pl module-job test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.goobi.api.mq.AsyncTicketBenchmark
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AsyncTicketBenchmark {
+
+    private static final int TICKETS = 1000;
+
+    @Param({ "1", "4" })
+    private int consumers;
+
+    @Param({ "20" })
+    private long latencyMillis;
+
+    private ExecutorService consumerThreads;
+
+    private TaskTicket ticket;
+
+    @Setup
+    public void setUp() {
+        consumerThreads = Executors.newFixedThreadPool(consumers);
+        ticket = TicketGenerator.generateSimpleTicket("benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumerThreads.shutdownNow();
+    }
+
+    @Benchmark
+    public void blocking() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(TICKETS);
+        for (int i = 0; i < TICKETS; i++) {
+            consumerThreads.execute(() -> {
+                simulateS3Request();
+                finished.countDown();
+            });
+        }
+        finished.await();
+    }
+
+    @Benchmark
+    public void asynchronous() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(TICKETS);
+        for (int i = 0; i < TICKETS; i++) {
+            consumerThreads.execute(() -> AsyncTicketExecutor.getInstance().submit(ticket, "benchmark", false, () -> {
+                simulateS3Request();
+                finished.countDown();
+                return PluginReturnValue.FINISH;
+            }));
+        }
+        finished.await();
+    }
+
+    private void simulateS3Request() {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AsyncTicketBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,114 @@
+package org.goobi.api.mq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the sequential extraction through a {@link java.util.zip.ZipInputStream} with the parallel extraction through the central directory.
+ *
+ * Both read the same synthetic archive from the local disk and compute the checksums of the extracted files, like the unzip ticket. Half of each
+ * file is random data and half is a repeated pattern, so the entries are deflated but don't shrink to nothing. The archive is created once per
+ * parameter set, the output folder is removed after each extraction.
+ *
+ * Run it with: mvn -pl module-job test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.goobi.api.mq.UnzipBenchmark
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UnzipBenchmark {
+
+    @Param({ "100", "500" })
+    private int entries;
+
+    @Param({ "1048576" })
+    private int entrySize;
+
+    private Path folder;
+
+    private Path zipFile;
+
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void createArchive() throws IOException {
+        folder = Files.createTempDirectory("unzip-benchmark");
+        zipFile = folder.resolve("archive.zip");
+        Random random = new Random(42);
+        byte[] data = new byte[entrySize];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+            for (int i = 0; i < entries; i++) {
+                random.nextBytes(data);
+                for (int j = entrySize / 2; j < entrySize; j++) {
+                    data[j] = (byte) (j % 64);
+                }
+                zip.putNextEntry(new ZipEntry("images/" + String.format("%05d", i) + ".tif"));
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutput() throws IOException {
+        output = Files.createDirectory(folder.resolve("output"));
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeOutput() throws IOException {
+        FileUtils.deleteDirectory(output.toFile());
+    }
+
+    @TearDown(Level.Trial)
+    public void removeArchive() throws IOException {
+        FileUtils.deleteDirectory(folder.toFile());
+    }
+
+    @Benchmark
+    public Map<Path, String> sequential() throws IOException {
+        Map<Path, String> checksums = new HashMap<>();
+        // the stream is closed by unzip
+        UnzipFileHandler.unzip(Files.newInputStream(zipFile), output, checksums);
+        return checksums;
+    }
+
+    @Benchmark
+    public Map<Path, String> parallel() throws IOException {
+        Map<Path, String> checksums = new HashMap<>();
+        UnzipFileHandler.unzip(zipFile, output, checksums);
+        return checksums;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(UnzipBenchmark.class.getSimpleName()).build()).run();
+    }
+}